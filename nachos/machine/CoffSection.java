@@ -206,6 +206,8 @@ public class CoffSection {
             Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
         Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+        Machine.processor().invalidatePage(ppn);
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,7 @@ public final class Interrupt {
         privilege.interrupt = new InterruptPrivilege();
 
         enabled = false;
-        pending = new TreeSet<PendingInterrupt>();
+        pending = new TimingWheel();
     }
 
     /**
@@ -122,15 +121,40 @@ public final class Interrupt {
         return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the last kernel tick before the next
+     * pending interrupt. Called when no thread is ready to run, so that the
+     * kernel does not spin one <tt>KernelTick</tt> at a time until an
+     * interrupt handler readies a thread. The time skipped is counted as
+     * kernel time, exactly as if it had been spent spinning, and the next
+     * tick delivers the interrupt at the same time it would have otherwise.
+     */
+    public void idle() {
+        Lib.assertTrue(disabled());
+
+        if (pending.isEmpty())
+            return;
+
+        Stats stats = privilege.stats;
+
+        // the number of kernel ticks that can pass without reaching it
+        long ticks = (pending.firstTime() - stats.totalTicks - 1) / Stats.KernelTick;
+        if (ticks <= 0)
+            return;
+
+        Lib.debug(dbgInt, "Idling for " + ticks * Stats.KernelTick + " ticks");
+
+        stats.kernelTicks += ticks * Stats.KernelTick;
+        stats.totalTicks += ticks * Stats.KernelTick;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
         Lib.assertTrue(when > 0);
 
         long time = privilege.stats.totalTicks + when;
-        PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
-
         Lib.debug(dbgInt, "Scheduling the " + type + " interrupt handler at time = " + time);
 
-        pending.add(toOccur);
+        pending.add(time, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -152,6 +176,36 @@ public final class Interrupt {
         enabled = true;
     }
 
+    /**
+     * Advance the simulated time by a batch of user ticks at once. The caller
+     * must have checked, using <tt>userTicksUntilDue()</tt>, that no interrupt
+     * falls due within the batch, so no handler needs to be called.
+     */
+    private void tickBatch(long userTicks) {
+        Stats stats = privilege.stats;
+
+        stats.userTicks += userTicks * Stats.UserTick;
+        stats.totalTicks += userTicks * Stats.UserTick;
+
+        Lib.assertTrue(pending.isEmpty() || pending.firstTime() > stats.totalTicks);
+    }
+
+    /**
+     * Return the number of user ticks that can pass, starting now, before
+     * <tt>tick()</tt> has to run an interrupt handler. Returns 0 when
+     * interrupt debugging is on, since every tick is traced.
+     */
+    private long userTicksUntilDue() {
+        if (Lib.test(dbgInt))
+            return 0;
+
+        if (pending.isEmpty())
+            return Long.MAX_VALUE;
+
+        // the tick that reaches the first pending time runs its handler
+        return (pending.firstTime() - privilege.stats.totalTicks - 1) / Stats.UserTick;
+    }
+
     private void checkIfDue() {
         long time = privilege.stats.totalTicks;
 
@@ -163,14 +217,13 @@ public final class Interrupt {
         if (pending.isEmpty())
             return;
 
-        if (((PendingInterrupt) pending.first()).time > time)
+        if (pending.firstTime() > time)
             return;
 
         Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-        while (!pending.isEmpty() && ((PendingInterrupt) pending.first()).time <= time) {
-            PendingInterrupt next = (PendingInterrupt) pending.first();
-            pending.remove(next);
+        while (!pending.isEmpty() && pending.firstTime() <= time) {
+            PendingInterrupt next = pending.removeFirst();
 
             Lib.assertTrue(next.time <= time);
 
@@ -179,7 +232,11 @@ public final class Interrupt {
 
             Lib.debug(dbgInt, "  " + next.type);
 
-            next.handler.run();
+            // the handler may schedule interrupts, so free the node first
+            Runnable handler = next.handler;
+            pending.free(next);
+
+            handler.run();
         }
 
         Lib.debug(dbgInt, "  (end of list)");
@@ -189,24 +246,17 @@ public final class Interrupt {
         System.out.println("Time: " + privilege.stats.totalTicks + ", interrupts " + (enabled ? "on" : "off"));
         System.out.println("Pending interrupts:");
 
-        for (Iterator i = pending.iterator(); i.hasNext();) {
-            PendingInterrupt toOccur = (PendingInterrupt) i.next();
+        ArrayList<PendingInterrupt> all = pending.toList();
+        Collections.sort(all);
+
+        for (PendingInterrupt toOccur : all)
             System.out.println("  " + toOccur.type + ", scheduled at " + toOccur.time);
-        }
 
         System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-        PendingInterrupt(long time, String type, Runnable handler) {
-            this.time = time;
-            this.type = type;
-            this.handler = handler;
-            this.id = numPendingInterruptsCreated++;
-        }
-
-        public int compareTo(Object o) {
-            PendingInterrupt toOccur = (PendingInterrupt) o;
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+        public int compareTo(PendingInterrupt toOccur) {
 
             // can't return 0 for unequal objects, so check all fields
             if (time < toOccur.time)
@@ -226,6 +276,201 @@ public final class Interrupt {
         Runnable handler;
 
         private long id;
+        /** The next interrupt in the same timing wheel slot, or free list. */
+        private PendingInterrupt next;
+    }
+
+    /**
+     * A hierarchical timing wheel holding the pending interrupts. Level
+     * <i>l</i> has 64 slots, each covering 64<sup><i>l</i></sup> ticks, and
+     * an interrupt is kept at the level of the highest 6-bit digit in which
+     * its time differs from the wheel's current time. Interrupts at level 0
+     * are therefore due at exactly the time of their slot, and each slot there
+     * is kept in scheduling order, so interrupts due at the same time occur
+     * in the order they were scheduled.
+     *
+     * <p>
+     * Scheduling and removing an interrupt take constant time, apart from
+     * moving it down a level when the wheel's time reaches its slot, which
+     * happens at most once per level. Nodes are recycled through a free list.
+     */
+    private class TimingWheel {
+        /**
+         * Add a new interrupt to the wheel, reusing a free node if possible.
+         */
+        void add(long time, String type, Runnable handler) {
+            Lib.assertTrue(time >= current);
+
+            PendingInterrupt toOccur = free;
+            if (toOccur != null)
+                free = toOccur.next;
+            else
+                toOccur = new PendingInterrupt();
+
+            toOccur.time = time;
+            toOccur.type = type;
+            toOccur.handler = handler;
+            toOccur.id = numPendingInterruptsCreated++;
+
+            insert(toOccur);
+            size++;
+
+            if (first != none && time < first)
+                first = time;
+        }
+
+        /**
+         * Return a node removed by <tt>removeFirst()</tt> to the free list.
+         */
+        void free(PendingInterrupt toOccur) {
+            toOccur.type = null;
+            toOccur.handler = null;
+            toOccur.next = free;
+            free = toOccur;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Return the time of the earliest pending interrupt. The wheel must
+         * not be empty.
+         */
+        long firstTime() {
+            Lib.assertTrue(size > 0);
+
+            if (first == none) {
+                int level = Long.numberOfTrailingZeros(levelsUsed);
+                int slot = Long.numberOfTrailingZeros(slotsUsed[level]);
+
+                if (level == 0) {
+                    first = (current & ~slotMask) | slot;
+                } else {
+                    // a higher slot covers a range of times, so search it
+                    first = Long.MAX_VALUE;
+                    for (PendingInterrupt i = heads[level][slot]; i != null; i = i.next)
+                        first = Math.min(first, i.time);
+                }
+            }
+
+            return first;
+        }
+
+        /**
+         * Remove and return the earliest pending interrupt, first in
+         * scheduling order among those due at the same time. Advances the
+         * wheel to its time, which must not be later than the current time.
+         */
+        PendingInterrupt removeFirst() {
+            long time = firstTime();
+
+            int level = Long.numberOfTrailingZeros(levelsUsed);
+            if (level > 0) {
+                int slot = Long.numberOfTrailingZeros(slotsUsed[level]);
+                PendingInterrupt list = heads[level][slot];
+                clear(level, slot);
+
+                // every interrupt in the slot now belongs to a lower level
+                current = time;
+                while (list != null) {
+                    PendingInterrupt toOccur = list;
+                    list = list.next;
+                    insert(toOccur);
+                }
+            } else {
+                current = time;
+            }
+
+            int slot = (int) (time & slotMask);
+            PendingInterrupt toOccur = heads[0][slot];
+
+            heads[0][slot] = toOccur.next;
+            if (toOccur.next == null)
+                clear(0, slot);
+
+            size--;
+            first = none;
+
+            return toOccur;
+        }
+
+        /**
+         * Return all the pending interrupts, in no particular order.
+         */
+        ArrayList<PendingInterrupt> toList() {
+            ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+
+            for (int level = 0; level < numLevels; level++) {
+                for (int slot = 0; slot < numSlots; slot++) {
+                    for (PendingInterrupt i = heads[level][slot]; i != null; i = i.next)
+                        all.add(i);
+                }
+            }
+
+            return all;
+        }
+
+        private void insert(PendingInterrupt toOccur) {
+            long diff = toOccur.time ^ current;
+            int level = (diff == 0) ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+            int slot = (int) ((toOccur.time >>> (level * slotBits)) & slotMask);
+
+            PendingInterrupt tail = tails[level][slot];
+            toOccur.next = null;
+
+            if (tail == null) {
+                heads[level][slot] = toOccur;
+                tails[level][slot] = toOccur;
+                slotsUsed[level] |= 1L << slot;
+                levelsUsed |= 1L << level;
+            } else if (level > 0 || tail.id < toOccur.id) {
+                tail.next = toOccur;
+                tails[level][slot] = toOccur;
+            } else {
+                // an older interrupt moving down a level goes before newer ones
+                PendingInterrupt prev = null, i = heads[level][slot];
+                while (i.id < toOccur.id) {
+                    prev = i;
+                    i = i.next;
+                }
+
+                toOccur.next = i;
+                if (prev == null)
+                    heads[level][slot] = toOccur;
+                else
+                    prev.next = toOccur;
+            }
+        }
+
+        private void clear(int level, int slot) {
+            heads[level][slot] = null;
+            tails[level][slot] = null;
+
+            slotsUsed[level] &= ~(1L << slot);
+            if (slotsUsed[level] == 0)
+                levelsUsed &= ~(1L << level);
+        }
+
+        private static final int slotBits = 6;
+        private static final int numSlots = 1 << slotBits;
+        private static final long slotMask = numSlots - 1;
+        private static final int numLevels = (64 + slotBits - 1) / slotBits;
+
+        private static final long none = -1;
+
+        private PendingInterrupt[][] heads = new PendingInterrupt[numLevels][numSlots];
+        private PendingInterrupt[][] tails = new PendingInterrupt[numLevels][numSlots];
+        private long[] slotsUsed = new long[numLevels];
+        private long levelsUsed = 0;
+
+        /** The time of the last interrupt removed; no pending one is earlier. */
+        private long current = 0;
+        /** The cached result of <tt>firstTime()</tt>, or <tt>none</tt>. */
+        private long first = none;
+        private int size = 0;
+
+        private PendingInterrupt free = null;
     }
 
     private long numPendingInterruptsCreated = 0;
@@ -233,7 +478,7 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private TimingWheel pending;
 
     private static final char dbgInt = 'i';
 
@@ -245,5 +490,13 @@ public final class Interrupt {
         public void tick(boolean inKernelMode) {
             Interrupt.this.tick(inKernelMode);
         }
+
+        public void tickBatch(long userTicks) {
+            Interrupt.this.tickBatch(userTicks);
+        }
+
+        public long userTicksUntilDue() {
+            return Interrupt.this.userTicksUntilDue();
+        }
     }
 }
@@ -291,6 +291,17 @@ public final class Machine {
         return timer;
     }
 
+    /**
+     * Add a report to be printed after the runtime statistics when Nachos
+     * halts. The statistics themselves are private to the machine; the
+     * kernel uses a report to print its own counters.
+     *
+     * @param report the report to run.
+     */
+    public static void addStatsReport(Runnable report) {
+        stats.addReport(report);
+    }
+
     /**
      * Return the hardware elevator bank.
      *
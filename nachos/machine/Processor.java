@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -23,6 +26,18 @@ public final class Processor {
     /**
      * Allocate a new MIPS processor, with the specified amount of memory.
      *
+     * <p>
+     * The <tt>Processor.engine</tt> key selects how user code is executed:
+     * <tt>interpreter</tt> (the default) fetches and executes one instruction
+     * at a time, while <tt>blocks</tt> compiles and caches basic blocks. Both
+     * produce the same results in the same number of ticks.
+     *
+     * <p>
+     * If <tt>Processor.batchTicks</tt> is <tt>true</tt>, the processor asks the
+     * interrupt controller how long it is until the next interrupt, and
+     * accounts for the instructions executed until then in one batch, rather
+     * than ticking after each one. Interrupts still occur at the same times.
+     *
      * @param privilege
      *            encapsulates privileged access to the Nachos machine.
      * @param numPhysPages
@@ -46,6 +61,22 @@ public final class Processor {
 
         mainMemory = new byte[pageSize * numPhysPages];
 
+        decodeCache = new DecodedInstruction[mainMemory.length / 4];
+        pageDecoded = new boolean[numPhysPages];
+
+        String engine = Config.getString("Processor.engine", "interpreter");
+        Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"), "unknown Processor.engine: " + engine);
+
+        usingBlocks = engine.equals("blocks");
+        if (usingBlocks) {
+            blockCache = new Block[mainMemory.length / 4];
+            blockInterpreter = new Instruction();
+        }
+
+        batchTicks = Config.getBoolean("Processor.batchTicks", false);
+
+        usingASIDs = usingTLB && Config.getBoolean("Processor.usingASIDs", false);
+
         if (usingTLB) {
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
@@ -90,6 +121,12 @@ public final class Processor {
 
         Machine.autoGrader().runProcessor(privilege);
 
+        // the disassembler works one instruction at a time
+        boolean debugging = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+
+        if (usingBlocks && !debugging)
+            runBlocks();
+
         Instruction inst = new Instruction();
 
         while (true) {
@@ -99,8 +136,74 @@ public final class Processor {
                 e.handle();
             }
 
-            privilege.interrupt.tick(false);
+            tick();
+        }
+    }
+
+    /**
+     * The main loop of the block engine. Each dispatch looks up, or compiles,
+     * the block starting at the current PC and runs it. The clock still ticks
+     * after every instruction, so interrupts arrive at exactly the same times
+     * as with the interpreter. Never returns.
+     */
+    private void runBlocks() {
+        while (true) {
+            int pc = registers[regPC];
+
+            try {
+                // blocks can't start in a delay slot, so step through those
+                if (registers[regNextPC] != pc + 4) {
+                    blockInterpreter.run();
+                } else {
+                    int paddr = translate(pc, 4, false);
+
+                    Block block = blockCache[paddr >> 2];
+                    if (block == null || block.pc != pc) {
+                        block = new Block(pc, paddr);
+                        blockCache[paddr >> 2] = block;
+                    }
+
+                    block.run();
+                    continue;
+                }
+            } catch (MipsException e) {
+                e.handle();
+            }
+
+            tick();
+        }
+    }
+
+    /**
+     * Advance the simulated time by one user instruction. When batching, the
+     * tick is only counted until an interrupt is about to fall due.
+     */
+    private void tick() {
+        if (tickBudget > 0) {
+            tickBudget--;
+            batchedTicks++;
+            return;
+        }
+
+        settleTicks();
+        privilege.interrupt.tick(false);
+
+        if (batchTicks)
+            tickBudget = privilege.interrupt.userTicksUntilDue();
+    }
+
+    /**
+     * Add any batched ticks to the simulated time, and stop batching. Must be
+     * called before the kernel can run, since it may read the time or
+     * schedule new interrupts.
+     */
+    private void settleTicks() {
+        if (batchedTicks > 0) {
+            privilege.interrupt.tickBatch(batchedTicks);
+            batchedTicks = 0;
         }
+
+        tickBudget = 0;
     }
 
     /**
@@ -223,6 +326,53 @@ public final class Processor {
         translations[number] = new TranslationEntry(entry);
     }
 
+    /**
+     * Test whether this processor tags its TLB entries with address space
+     * IDs. If so, a TLB entry only matches while the current address space ID
+     * equals its <tt>asid</tt>, so the translations of several address spaces
+     * can be in the TLB at once.
+     *
+     * @return <tt>true</tt> if TLB entries are tagged with address space IDs.
+     */
+    public boolean hasASIDs() {
+        return usingASIDs;
+    }
+
+    /**
+     * Return the number of address space IDs this processor supports.
+     *
+     * @return the number of address space IDs.
+     */
+    public int getNumASIDs() {
+        Lib.assertTrue(usingASIDs);
+
+        return numASIDs;
+    }
+
+    /**
+     * Set the address space ID that TLB entries must match.
+     *
+     * @param asid
+     *            the new address space ID.
+     */
+    public void setASID(int asid) {
+        Lib.assertTrue(usingASIDs);
+        Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+        this.asid = asid;
+    }
+
+    /**
+     * Return the address space ID that TLB entries must match.
+     *
+     * @return the current address space ID.
+     */
+    public int getASID() {
+        Lib.assertTrue(usingASIDs);
+
+        return asid;
+    }
+
     /**
      * Return the number of pages of physical memory attached to this simulated
      * processor.
@@ -237,12 +387,61 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Code that modifies this array directly must call
+     * <tt>invalidatePage()</tt> for every physical page it touches, so that
+     * the processor does not keep executing stale decoded instructions.
+     *
      * @return the main memory array.
      */
     public byte[] getMemory() {
         return mainMemory;
     }
 
+    /**
+     * Discard any decoded instructions cached for the specified physical page.
+     * The processor caches the decoded form of every instruction it executes,
+     * keyed by physical address. Stores made by user instructions invalidate
+     * the cache automatically; any other change to a page of physical memory
+     * (loading a page from a COFF file, copying data in from the kernel) must
+     * be followed by a call to this method.
+     *
+     * @param ppn
+     *            the physical page whose contents have changed.
+     */
+    public void invalidatePage(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+        if (!pageDecoded[ppn])
+            return;
+
+        int first = ppn * (pageSize / 4);
+        Arrays.fill(decodeCache, first, first + (pageSize / 4), null);
+        if (usingBlocks)
+            Arrays.fill(blockCache, first, first + (pageSize / 4), null);
+        pageDecoded[ppn] = false;
+
+        blockEpoch++;
+    }
+
+    /**
+     * Discard the decoded form of the word at the specified physical address,
+     * after a store to it. Blocks in the same page may contain the word, so
+     * they are discarded too.
+     */
+    private void invalidateWord(int paddr) {
+        if (decodeCache[paddr >> 2] == null)
+            return;
+
+        decodeCache[paddr >> 2] = null;
+
+        if (usingBlocks) {
+            int first = (paddr / pageSize) * (pageSize / 4);
+            Arrays.fill(blockCache, first, first + (pageSize / 4), null);
+            blockEpoch++;
+        }
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -330,12 +529,20 @@ public final class Processor {
 
             entry = translations[vpn];
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look through all TLB entries for matching vpn, starting with
+        // the one that matched last, since most references stay on one page
         else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
-                    entry = translations[i];
-                    break;
+            TranslationEntry last = translations[lastTLBHit];
+            if (last.valid && last.vpn == vpn && (!usingASIDs || last.asid == asid)) {
+                entry = last;
+            } else {
+                for (int i = 0; i < tlbSize; i++) {
+                    if (translations[i].valid && translations[i].vpn == vpn &&
+                            (!usingASIDs || translations[i].asid == asid)) {
+                        entry = translations[i];
+                        lastTLBHit = i;
+                        break;
+                    }
                 }
             }
             if (entry == null) {
@@ -343,6 +550,7 @@ public final class Processor {
                 Lib.debug(dbgProcessor, "\t\tTLB miss");
                 throw new MipsException(exceptionTLBMiss, vaddr);
             }
+            privilege.stats.numTLBHits++;
         }
 
         // check if trying to write a read-only page
@@ -416,7 +624,11 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+        int paddr = translate(vaddr, size, true);
+        Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+        // accesses are aligned, so only one word can have changed
+        invalidateWord(paddr);
     }
 
     /**
@@ -544,6 +756,12 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The TLB entry that matched the last translation. */
+    private int lastTLBHit = 0;
+    /** <tt>true</tt> if TLB entries are tagged with address space IDs. */
+    private boolean usingASIDs;
+    /** The address space ID that TLB entries must match. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -552,12 +770,37 @@ public final class Processor {
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Number of address space IDs, when TLB entries are tagged. */
+    private static final int numASIDs = 64;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /** Decoded instructions, indexed by physical word address. */
+    private DecodedInstruction[] decodeCache;
+    /** <tt>true</tt> for each physical page that may have decoded entries. */
+    private boolean[] pageDecoded;
+
+    /** <tt>true</tt> if using the block engine. */
+    private boolean usingBlocks;
+    /** Compiled blocks, indexed by the physical word address they start at. */
+    private Block[] blockCache;
+    /** Executes the instructions that blocks don't compile. */
+    private Instruction blockInterpreter;
+    /**
+     * Incremented whenever a running block must stop before its next
+     * instruction, because the kernel ran or code it was compiled from changed.
+     */
+    private int blockEpoch = 0;
+
+    /** <tt>true</tt> if ticks are accounted for in batches. */
+    private boolean batchTicks;
+    /** The number of further ticks that can be batched. */
+    private long tickBudget = 0;
+    /** The number of ticks executed but not yet added to the time. */
+    private long batchedTicks = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -569,6 +812,9 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
         public void flushPipe() {
             finishLoad();
+
+            // an interrupt handler may change the address space or the code
+            blockEpoch++;
         }
     }
 
@@ -587,6 +833,9 @@ public final class Processor {
         }
 
         public void handle() {
+            // the exception handler runs kernel code, so bring the time up to date
+            settleTicks();
+
             writeRegister(regCause, cause);
 
             if (hasBadVAddr)
@@ -619,100 +868,66 @@ public final class Processor {
             writeBack();
         }
 
+        /**
+         * Execute an instruction that has already been fetched and decoded.
+         * Used by blocks for the instructions they don't compile.
+         */
+        public void run(DecodedInstruction decoded) throws MipsException {
+            inst = decoded;
+            decode();
+            execute();
+            writeBack();
+        }
+
         private boolean test(int flag) {
-            return Lib.test(flag, flags);
+            return (inst.flags & flag) != 0;
         }
 
         private void fetch() throws MipsException {
             if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) || Lib.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-            value = readMem(registers[regPC], 4);
-        }
+            int pc = registers[regPC];
+            int paddr = translate(pc, 4, false);
 
-        private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+            // reuse the decoded form if this word has been executed before
+            DecodedInstruction cached = decodeAt(paddr, pc);
 
-            Mips info;
-            switch (op) {
-            case 0:
-                info = Mips.specialtable[func];
-                break;
-            case 1:
-                info = Mips.regimmtable[rt];
-                break;
-            default:
-                info = Mips.optable[op];
-                break;
-            }
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" + Lib.toHexString(cached.value, 8));
 
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+            inst = cached;
+        }
 
+        private void decode() {
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
-            if (format == Mips.RFMT)
-                jtarget = registers[rs];
-            else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
-            else if (format == Mips.JFMT)
-                jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+            if (inst.format == Mips.RFMT)
+                jtarget = registers[inst.rs];
+            else if (registers[regNextPC] == inst.pc + 4)
+                jtarget = inst.jtarget;
             else
-                jtarget = -1;
-
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
+                jtarget = inst.jumpTarget(registers[regNextPC]);
 
             // get addr
-            addr = registers[rs] + imm;
+            addr = registers[inst.rs] + inst.imm;
 
             // get src1
             if (test(Mips.SRC1SH))
-                src1 = sh;
+                src1 = inst.sh;
             else
-                src1 = registers[rs];
+                src1 = registers[inst.rs];
 
             // get src2
             if (test(Mips.SRC2IMM))
-                src2 = imm;
+                src2 = inst.imm;
             else
-                src2 = registers[rt];
+                src2 = registers[inst.rt];
 
             if (test(Mips.UNSIGNED)) {
                 src1 &= 0xFFFFFFFFL;
@@ -727,18 +942,18 @@ public final class Processor {
             if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) && !Lib.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-            if (operation == Mips.INVALID) {
-                System.out.print("invalid: op=" + Lib.toHexString(op, 2) + " rs=" + Lib.toHexString(rs, 2) + " rt="
-                        + Lib.toHexString(rt, 2) + " rd=" + Lib.toHexString(rd, 2) + " sh=" + Lib.toHexString(sh, 2)
-                        + " func=" + Lib.toHexString(func, 2) + "\n");
+            if (inst.operation == Mips.INVALID) {
+                System.out.print("invalid: op=" + Lib.toHexString(inst.op, 2) + " rs=" + Lib.toHexString(inst.rs, 2) + " rt="
+                        + Lib.toHexString(inst.rt, 2) + " rd=" + Lib.toHexString(inst.rd, 2) + " sh=" + Lib.toHexString(inst.sh, 2)
+                        + " func=" + Lib.toHexString(inst.func, 2) + "\n");
                 return;
             }
 
-            int spaceIndex = name.indexOf(' ');
-            Lib.assertTrue(spaceIndex != -1 && spaceIndex == name.lastIndexOf(' '));
+            int spaceIndex = inst.name.indexOf(' ');
+            Lib.assertTrue(spaceIndex != -1 && spaceIndex == inst.name.lastIndexOf(' '));
 
-            String instname = name.substring(0, spaceIndex);
-            char[] args = name.substring(spaceIndex + 1).toCharArray();
+            String instname = inst.name.substring(0, spaceIndex);
+            char[] args = inst.name.substring(spaceIndex + 1).toCharArray();
 
             System.out.print(instname + "\t");
 
@@ -747,52 +962,52 @@ public final class Processor {
             for (int i = 0; i < args.length; i++) {
                 switch (args[i]) {
                 case Mips.RS:
-                    System.out.print("$" + rs);
+                    System.out.print("$" + inst.rs);
                     minCharsPrinted += 2;
                     maxCharsPrinted += 3;
 
                     if (Lib.test(dbgFullDisassemble)) {
-                        System.out.print("#0x" + Lib.toHexString(registers[rs]));
+                        System.out.print("#0x" + Lib.toHexString(registers[inst.rs]));
                         minCharsPrinted += 11;
                         maxCharsPrinted += 11;
                     }
                     break;
                 case Mips.RT:
-                    System.out.print("$" + rt);
+                    System.out.print("$" + inst.rt);
                     minCharsPrinted += 2;
                     maxCharsPrinted += 3;
 
                     if (Lib.test(dbgFullDisassemble) && (i != 0 || !test(Mips.DST)) && !test(Mips.DELAYEDLOAD)) {
-                        System.out.print("#0x" + Lib.toHexString(registers[rt]));
+                        System.out.print("#0x" + Lib.toHexString(registers[inst.rt]));
                         minCharsPrinted += 11;
                         maxCharsPrinted += 11;
                     }
                     break;
                 case Mips.RETURNADDRESS:
-                    if (rd == 31)
+                    if (inst.rd == 31)
                         continue;
                 case Mips.RD:
-                    System.out.print("$" + rd);
+                    System.out.print("$" + inst.rd);
                     minCharsPrinted += 2;
                     maxCharsPrinted += 3;
                     break;
                 case Mips.IMM:
-                    System.out.print(imm);
+                    System.out.print(inst.imm);
                     minCharsPrinted += 1;
                     maxCharsPrinted += 6;
                     break;
                 case Mips.SHIFTAMOUNT:
-                    System.out.print(sh);
+                    System.out.print(inst.sh);
                     minCharsPrinted += 1;
                     maxCharsPrinted += 2;
                     break;
                 case Mips.ADDR:
-                    System.out.print(imm + "($" + rs);
+                    System.out.print(inst.imm + "($" + inst.rs);
                     minCharsPrinted += 4;
                     maxCharsPrinted += 5;
 
                     if (Lib.test(dbgFullDisassemble)) {
-                        System.out.print("#0x" + Lib.toHexString(registers[rs]));
+                        System.out.print("#0x" + Lib.toHexString(registers[inst.rs]));
                         minCharsPrinted += 11;
                         maxCharsPrinted += 11;
                     }
@@ -837,7 +1052,7 @@ public final class Processor {
             int value;
             int preserved;
 
-            switch (operation) {
+            switch (inst.operation) {
             case Mips.ADD:
                 dst = src1 + src2;
                 break;
@@ -887,7 +1102,7 @@ public final class Processor {
                 dst = src1 ^ src2;
                 break;
             case Mips.LUI:
-                dst = imm << 16;
+                dst = inst.imm << 16;
                 break;
 
             case Mips.BEQ:
@@ -929,10 +1144,10 @@ public final class Processor {
                 throw new MipsException(exceptionSyscall);
 
             case Mips.LOAD:
-                value = readMem(addr, size);
+                value = readMem(addr, inst.size);
 
                 if (!test(Mips.UNSIGNED))
-                    dst = Lib.extend(value, 0, size * 8);
+                    dst = Lib.extend(value, 0, inst.size * 8);
                 else
                     dst = value;
 
@@ -962,7 +1177,7 @@ public final class Processor {
                 break;
 
             case Mips.STORE:
-                writeMem(addr, size, (int) src2);
+                writeMem(addr, inst.size, (int) src2);
                 break;
 
             case Mips.SWL:
@@ -1010,17 +1225,17 @@ public final class Processor {
                 throw new MipsException(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
-                delayedLoad(dstReg, (int) dst, mask);
+                delayedLoad(inst.dstReg, (int) dst, mask);
             else
                 finishLoad();
 
             if (test(Mips.LINK))
                 dst = nextPC;
 
-            if (test(Mips.DST) && dstReg != 0)
-                registers[dstReg] = (int) dst;
+            if (test(Mips.DST) && inst.dstReg != 0)
+                registers[inst.dstReg] = (int) dst;
 
-            if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+            if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && inst.dstReg != 0) {
                 if (Lib.test(dbgFullDisassemble)) {
                     System.out.print("#0x" + Lib.toHexString((int) dst));
                     if (test(Mips.DELAYEDLOAD))
@@ -1038,18 +1253,456 @@ public final class Processor {
                 System.out.print("\n");
         }
 
-        // state used to execute a single instruction
-        int value, op, rs, rt, rd, sh, func, target, imm;
-        int operation, format, flags;
-        String name;
+        // the decoded instruction being executed
+        DecodedInstruction inst;
 
-        int size;
-        int addr, nextPC, jtarget, dstReg;
+        // state used to execute a single instruction
+        int addr, nextPC, jtarget;
         long src1, src2, dst;
         int mask;
         boolean branch;
     }
 
+    /**
+     * The decoded form of a single instruction word. Instances are immutable,
+     * so they can be cached and reused every time the processor executes the
+     * same physical word, skipping field extraction and the table lookups.
+     */
+    private static class DecodedInstruction {
+        DecodedInstruction(int value, int pc) {
+            this.value = value;
+            this.pc = pc;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
+            signedImm = Lib.extend(value, 0, 16);
+
+            Mips info;
+            switch (op) {
+            case 0:
+                info = Mips.specialtable[func];
+                break;
+            case 1:
+                info = Mips.regimmtable[rt];
+                break;
+            default:
+                info = Mips.optable[op];
+                break;
+            }
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm = signedImm & 0xFFFF;
+            else
+                imm = signedImm;
+
+            // the jump target assuming this is not in a delay slot
+            jtarget = jumpTarget(pc + 4);
+        }
+
+        /**
+         * Compute the target of an I-format or J-format jump, given the
+         * contents of the nextPC register.
+         */
+        int jumpTarget(int nextPC) {
+            if (format == Mips.IFMT)
+                return nextPC + (signedImm << 2);
+            else if (format == Mips.JFMT)
+                return (nextPC & 0xF0000000) | (target << 2);
+            else
+                return -1;
+        }
+
+        /** The raw instruction word, and the PC it was decoded at. */
+        final int value, pc;
+        final int op, rs, rt, rd, sh, func, target, imm, signedImm;
+        final int operation, format, flags;
+        final String name;
+
+        final int size, dstReg, jtarget;
+    }
+
+
+    /**
+     * A single compiled instruction. Running it has exactly the effect of the
+     * interpreter executing the instruction it was compiled from, but without
+     * the fetch, decode and flag tests.
+     */
+    private interface MicroOp {
+        void run() throws MipsException;
+    }
+
+    /**
+     * A straight-line run of instructions within a single physical page,
+     * compiled once and then replayed every time the processor reaches its
+     * first instruction. A block ends after a branch and its delay slot, after
+     * an instruction that always traps, or at the end of the page.
+     *
+     * <p>
+     * Only the first instruction of a block is translated. The rest are on the
+     * same page, and its translation can only change while the kernel is
+     * running, which ends the block.
+     */
+    private class Block {
+        /**
+         * Compile the block starting at the specified address.
+         *
+         * @param pc
+         *            the virtual address of the first instruction.
+         * @param paddr
+         *            the physical address of the first instruction.
+         */
+        Block(int pc, int paddr) {
+            this.pc = pc;
+
+            int pageEnd = (paddr / pageSize + 1) * pageSize;
+            ArrayList<MicroOp> compiled = new ArrayList<MicroOp>();
+
+            for (int i = 0; paddr + i * 4 < pageEnd; i++) {
+                DecodedInstruction d = decodeAt(paddr + i * 4, pc + i * 4);
+                compiled.add(compile(d, pc + i * 4));
+
+                if ((d.flags & Mips.BRANCH) != 0) {
+                    // take the delay slot too, unless it is another branch
+                    int slot = paddr + (i + 1) * 4;
+                    if (slot < pageEnd) {
+                        DecodedInstruction delay = decodeAt(slot, pc + (i + 1) * 4);
+                        if ((delay.flags & Mips.BRANCH) == 0)
+                            compiled.add(compile(delay, pc + (i + 1) * 4));
+                    }
+                    break;
+                }
+
+                if (d.operation == Mips.SYSCALL || d.operation == Mips.UNIMPL || d.operation == Mips.INVALID)
+                    break;
+            }
+
+            ops = compiled.toArray(new MicroOp[compiled.size()]);
+        }
+
+        /**
+         * Run the block, ticking the clock after each instruction. Returns
+         * early if an instruction traps, or if an interrupt handler runs.
+         */
+        void run() {
+            int epoch = blockEpoch;
+
+            for (int i = 0; i < ops.length; i++) {
+                try {
+                    ops[i].run();
+                } catch (MipsException e) {
+                    e.handle();
+                    tick();
+                    return;
+                }
+
+                tick();
+
+                if (blockEpoch != epoch)
+                    return;
+            }
+        }
+
+        /** The virtual address of the first instruction. */
+        final int pc;
+        private final MicroOp[] ops;
+    }
+
+    /**
+     * Return the decoded form of the word at the specified physical address,
+     * decoding and caching it if necessary.
+     */
+    private DecodedInstruction decodeAt(int paddr, int pc) {
+        DecodedInstruction d = decodeCache[paddr >> 2];
+        if (d == null) {
+            d = new DecodedInstruction(Lib.bytesToInt(mainMemory, paddr, 4), pc);
+            decodeCache[paddr >> 2] = d;
+            pageDecoded[paddr / pageSize] = true;
+        }
+        return d;
+    }
+
+    /**
+     * Compile a single decoded instruction. The common operations get their
+     * own code, which must match <tt>Instruction</tt> exactly, including its
+     * 64-bit arithmetic; everything else is handed to the interpreter.
+     *
+     * @param d
+     *            the decoded instruction.
+     * @param pc
+     *            the virtual address of the instruction.
+     * @return the compiled instruction.
+     */
+    private MicroOp compile(final DecodedInstruction d, final int pc) {
+        final int rs = d.rs, rt = d.rt, sh = d.sh, imm = d.imm, dstReg = d.dstReg;
+        final boolean unsigned = (d.flags & Mips.UNSIGNED) != 0;
+        final boolean srcImm = (d.flags & Mips.SRC2IMM) != 0;
+
+        if ((d.flags & Mips.BRANCH) != 0)
+            return compileBranch(d, pc);
+
+        switch (d.operation) {
+        case Mips.ADD:
+            if ((d.flags & Mips.OVERFLOW) != 0)
+                break;
+            if (srcImm) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rs] + imm);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rs] + registers[rt]);
+                }
+            };
+        case Mips.SUB:
+            if ((d.flags & Mips.OVERFLOW) != 0)
+                break;
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rs] - registers[rt]);
+                }
+            };
+
+        case Mips.AND:
+            if (srcImm) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rs] & imm);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rs] & registers[rt]);
+                }
+            };
+        case Mips.OR:
+            if (srcImm) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rs] | imm);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rs] | registers[rt]);
+                }
+            };
+        case Mips.XOR:
+            if (srcImm) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rs] ^ imm);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rs] ^ registers[rt]);
+                }
+            };
+        case Mips.NOR:
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, ~(registers[rs] | registers[rt]));
+                }
+            };
+
+        case Mips.SLT:
+            // sltiu compares against the zero-extended immediate
+            return new MicroOp() {
+                public void run() {
+                    long src1 = registers[rs];
+                    long src2 = srcImm ? imm : registers[rt];
+                    if (unsigned) {
+                        src1 &= 0xFFFFFFFFL;
+                        src2 &= 0xFFFFFFFFL;
+                    }
+                    writeResult(dstReg, (src1 < src2) ? 1 : 0);
+                }
+            };
+
+        // on the low 32 bits, a 64-bit logical shift of a sign-extended
+        // register is an arithmetic shift, so srl is the same as sra
+        case Mips.SLL:
+            if ((d.flags & Mips.SRC1SH) != 0) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rt] << sh);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rt] << (registers[rs] & 0x1F));
+                }
+            };
+        case Mips.SRA:
+        case Mips.SRL:
+            if ((d.flags & Mips.SRC1SH) != 0) {
+                return new MicroOp() {
+                    public void run() {
+                        writeResult(dstReg, registers[rt] >> sh);
+                    }
+                };
+            }
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[rt] >> (registers[rs] & 0x1F));
+                }
+            };
+
+        case Mips.LUI:
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, imm << 16);
+                }
+            };
+        case Mips.MFLO:
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[regLo]);
+                }
+            };
+        case Mips.MFHI:
+            return new MicroOp() {
+                public void run() {
+                    writeResult(dstReg, registers[regHi]);
+                }
+            };
+
+        case Mips.LOAD:
+            final int size = d.size;
+            return new MicroOp() {
+                public void run() throws MipsException {
+                    int value = readMem(registers[rs] + imm, size);
+                    if (!unsigned)
+                        value = Lib.extend(value, 0, size * 8);
+
+                    delayedLoad(dstReg, value, 0xFFFFFFFF);
+                    advancePC(registers[regNextPC] + 4);
+                }
+            };
+        case Mips.STORE:
+            final int storeSize = d.size;
+            return new MicroOp() {
+                public void run() throws MipsException {
+                    writeMem(registers[rs] + imm, storeSize, registers[rt]);
+
+                    finishLoad();
+                    advancePC(registers[regNextPC] + 4);
+                }
+            };
+        }
+
+        // no fast path, so let the interpreter execute it
+        return new MicroOp() {
+            public void run() throws MipsException {
+                blockInterpreter.run(d);
+            }
+        };
+    }
+
+    /**
+     * Compile a branch or jump. The target of an immediate or absolute jump
+     * is fixed, since a branch never starts a block from a delay slot.
+     */
+    private MicroOp compileBranch(final DecodedInstruction d, final int pc) {
+        final int rs = d.rs, rt = d.rt, dstReg = d.dstReg;
+        final int operation = d.operation;
+        final boolean link = (d.flags & Mips.LINK) != 0;
+        final boolean register = (d.format == Mips.RFMT);
+        final int target = d.jumpTarget(pc + 4);
+
+        return new MicroOp() {
+            public void run() {
+                int src1 = registers[rs];
+                boolean branch;
+
+                switch (operation) {
+                case Mips.BEQ:
+                    branch = (src1 == registers[rt]);
+                    break;
+                case Mips.BNE:
+                    branch = (src1 != registers[rt]);
+                    break;
+                case Mips.BGEZ:
+                    branch = (src1 >= 0);
+                    break;
+                case Mips.BGTZ:
+                    branch = (src1 > 0);
+                    break;
+                case Mips.BLEZ:
+                    branch = (src1 <= 0);
+                    break;
+                case Mips.BLTZ:
+                    branch = (src1 < 0);
+                    break;
+                default:
+                    branch = true;
+                    break;
+                }
+
+                int nextPC = registers[regNextPC] + 4;
+                int jtarget = register ? src1 : target;
+
+                finishLoad();
+
+                if (link && dstReg != 0)
+                    registers[dstReg] = nextPC;
+
+                advancePC(branch ? jtarget : nextPC);
+            }
+        };
+    }
+
+    /**
+     * Complete a compiled instruction that writes a register: finish the
+     * pending load, write the result, and advance the PC.
+     */
+    private void writeResult(int dstReg, int value) {
+        finishLoad();
+
+        if (dstReg != 0)
+            registers[dstReg] = value;
+
+        advancePC(registers[regNextPC] + 4);
+    }
+
     private static class Mips {
         Mips() {
         }
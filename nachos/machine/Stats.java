@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -22,7 +25,31 @@ public final class Stats {
         System.out.println("Disk I/O: reads " + numDiskReads + ", writes " + numDiskWrites);
         System.out.println("Console I/O: reads " + numConsoleReads + ", writes " + numConsoleWrites);
         System.out.println("Paging: page faults " + numPageFaults + ", TLB misses " + numTLBMisses);
+        System.out.println("TLB: hits " + numTLBHits + ", hit rate " + String.format("%.2f%%", getTLBHitRate() * 100));
         System.out.println("Network I/O: received " + numPacketsReceived + ", sent " + numPacketsSent);
+        System.out.println("TCB pool: hits " + numTCBPoolHits + ", misses " + numTCBPoolMisses);
+
+        for (Runnable report : reports)
+            report.run();
+    }
+
+    /**
+     * Add a report to be run after the statistics in this object are
+     * printed.
+     *
+     * @param report the report to run.
+     */
+    public void addReport(Runnable report) {
+        reports.add(report);
+    }
+
+    /**
+     * Return the fraction of TLB lookups that hit, or 0 if there have been
+     * none.
+     */
+    public double getTLBHitRate() {
+        long lookups = numTLBHits + numTLBMisses;
+        return lookups == 0 ? 0 : (double) numTLBHits / lookups;
     }
 
     /**
@@ -50,10 +77,18 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of translations found in the TLB. */
+    public long numTLBHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of TCBs started on a recycled JVM thread. */
+    public int numTCBPoolHits = 0;
+    /** The total number of TCBs that needed a new JVM thread. */
+    public int numTCBPoolMisses = 0;
+
+    private List<Runnable> reports = new ArrayList<Runnable>();
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +24,21 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * The <tt>TCB.backend</tt> key selects how TCBs hand the CPU to each other.
+ * <tt>monitor</tt> (the default) waits and notifies on the TCB's monitor.
+ * <tt>park</tt> parks and unparks the JVM threads instead, which is cheaper.
+ * <tt>virtual</tt> also parks, but runs each TCB after the first in a virtual
+ * thread, so that blocked TCBs don't each hold a platform thread; it needs
+ * Java 21 or later, and falls back to <tt>park</tt> otherwise. Whatever the
+ * backend, only one TCB runs at a time. <tt>TCB.maxThreads</tt> sets the
+ * maximum number of TCBs, 1000 by default.
+ *
+ * <p>
+ * The JVM threads of destroyed TCBs are kept in a pool and reused by later
+ * TCBs, rather than being torn down and created again. <tt>TCB.poolSize</tt>
+ * sets how many idle threads the pool may hold, 64 by default.
  */
 public final class TCB {
     /**
@@ -40,6 +58,55 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
         TCB.privilege = privilege;
         privilege.tcb = new TCBPrivilege();
+
+        maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+        Lib.assertTrue(maxThreads > 0);
+
+        poolSize = Config.getInteger("TCB.poolSize", poolSize);
+        Lib.assertTrue(poolSize >= 0);
+
+        String backend = Config.getString("TCB.backend", "monitor");
+        Lib.assertTrue(backend.equals("monitor") || backend.equals("park") || backend.equals("virtual"),
+                "unknown TCB.backend: " + backend);
+
+        parking = !backend.equals("monitor");
+        if (backend.equals("virtual"))
+            findVirtualThreads();
+    }
+
+    /**
+     * Look up the virtual thread builder, which is only present in Java 21 and
+     * later, using reflection so that Nachos still builds on older versions.
+     * The virtual threads are confined to one carrier thread, since only one
+     * TCB can run at a time anyway.
+     */
+    private static void findVirtualThreads() {
+        try {
+            if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null)
+                System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+
+            virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstartedMethod = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            System.out.print(" (no virtual threads)");
+            virtualBuilder = null;
+            unstartedMethod = null;
+        }
+    }
+
+    /**
+     * Create the JVM thread for a TCB, using a virtual thread if possible.
+     */
+    private static Thread newJavaThread(Runnable target) {
+        if (virtualBuilder != null) {
+            try {
+                return (Thread) unstartedMethod.invoke(virtualBuilder, target);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return new Thread(target);
     }
 
     /**
@@ -92,31 +159,45 @@ public final class TCB {
 
         if (!isFirstTCB) {
             /*
-             * If this is not the first TCB, we have to make a new Java thread
-             * to run it. Creating Java threads is a privileged operation.
+             * If this is not the first TCB, it needs a Java thread of its own.
+             * Reuse an idle one from the pool if possible; otherwise make a
+             * new one, which is a privileged operation.
              */
-            tcbTarget = new Runnable() {
-                public void run() {
-                    threadroot();
-                }
-            };
+            PooledThread pooled = takePooledThread();
+            boolean reused = (pooled != null);
+
+            if (reused) {
+                privilege.stats.numTCBPoolHits++;
+            } else {
+                privilege.stats.numTCBPoolMisses++;
+
+                final PooledThread created = new PooledThread();
+                privilege.doPrivileged(new Runnable() {
+                    public void run() {
+                        created.javaThread = newJavaThread(created);
+                    }
+                });
+                pooled = created;
+            }
 
-            privilege.doPrivileged(new Runnable() {
-                public void run() {
-                    javaThread = new Thread(tcbTarget);
-                }
-            });
+            javaThread = pooled.javaThread;
 
             /*
-             * The Java thread hasn't yet started, but we need to get it
-             * blocking in yield(). We do this by temporarily turning off the
-             * current TCB, starting the new Java thread, and waiting for it to
-             * wake us up from threadroot(). Once the new TCB wakes us up, it's
-             * safe to context switch to the new TCB.
+             * The Java thread hasn't yet started running this TCB, but we need
+             * to get it blocking in yield(). We do this by temporarily turning
+             * off the current TCB, starting the Java thread (or handing this
+             * TCB to the idle one), and waiting for it to wake us up from
+             * threadroot(). Once the new TCB wakes us up, it's safe to context
+             * switch to the new TCB.
              */
             currentTCB.running = false;
 
-            this.javaThread.start();
+            pooled.next = this;
+            if (reused)
+                LockSupport.unpark(javaThread);
+            else
+                javaThread.start();
+
             currentTCB.waitForInterrupt();
         } else {
             /*
@@ -294,7 +375,17 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+        if (parking) {
+            // an unpark before we park leaves a permit, so no wakeup is lost
+            while (!running)
+                LockSupport.park(this);
+        } else {
+            waitOnMonitor();
+        }
+    }
+
+    private synchronized void waitOnMonitor() {
         while (!running) {
             try {
                 wait();
@@ -309,11 +400,64 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+        if (parking) {
+            running = true;
+            LockSupport.unpark(javaThread);
+        } else {
+            notifyMonitor();
+        }
+    }
+
+    private synchronized void notifyMonitor() {
         running = true;
         notify();
     }
 
+    /**
+     * Remove and return the most recently idled thread in the pool, or return
+     * <tt>null</tt> if the pool is empty.
+     */
+    private static PooledThread takePooledThread() {
+        synchronized (pool) {
+            if (pool.isEmpty())
+                return null;
+
+            return pool.remove(pool.size() - 1);
+        }
+    }
+
+    /**
+     * The body of every Java thread after the first. It runs a TCB until the
+     * TCB is destroyed, then waits in the pool to be handed another one, unless
+     * the pool is full, in which case the thread ends.
+     */
+    private static class PooledThread implements Runnable {
+        public void run() {
+            while (true) {
+                TCB tcb = next;
+                next = null;
+
+                tcb.threadroot();
+
+                synchronized (pool) {
+                    if (pool.size() >= poolSize)
+                        return;
+
+                    pool.add(this);
+                }
+
+                // start() sets next, then unparks us
+                while (next == null)
+                    LockSupport.park(this);
+            }
+        }
+
+        /** The TCB to run next, set by <tt>start()</tt>. */
+        private volatile TCB next = null;
+        private Thread javaThread;
+    }
+
     private void associateThread(KThread thread) {
         // make sure AutoGrader.runningThread() gets called only once per
         // context switch
@@ -337,9 +481,19 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by the <tt>TCB.maxThreads</tt> key.
      */
-    public static final int maxThreads = 250;
+    private static int maxThreads = 1000;
+    /** The maximum number of idle Java threads kept for reuse. */
+    private static int poolSize = 64;
+    /** Idle Java threads, waiting for a TCB to run. */
+    private static ArrayList<PooledThread> pool = new ArrayList<PooledThread>();
+
+    /** <tt>true</tt> if TCBs park instead of waiting on their monitors. */
+    private static boolean parking = false;
+    /** The virtual thread builder, or <tt>null</tt> to use platform threads. */
+    private static Object virtualBuilder = null;
+    private static Method unstartedMethod = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -395,9 +549,9 @@ public final class TCB {
      * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
      * associated Java thread ought to run ASAP. When starting or destroying a
      * TCB, this is temporarily true for a thread other than that of the current
-     * TCB.
+     * TCB. Volatile, since parking TCBs don't synchronize on it.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -409,7 +563,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
         public void associateThread(KThread thread) {
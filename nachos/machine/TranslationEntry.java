@@ -54,6 +54,7 @@ public final class TranslationEntry {
         readOnly = entry.readOnly;
         used = entry.used;
         dirty = entry.dirty;
+        asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -84,4 +85,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this translation belongs to. A TLB entry only
+     * translates references made while the processor's address space ID
+     * matches, if the processor tags its TLB with address space IDs.
+     */
+    public int asid;
 }
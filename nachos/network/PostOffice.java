@@ -12,12 +12,18 @@ import nachos.threads.*;
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * done in the receive interrupt handler because a thread may have to be woken
+ * to take the message.
+ *
+ * <p>
+ * Each queue (a <tt>BlockingQueue</tt>) holds at most
+ * <tt>PostOffice.mailboxCapacity</tt> messages. A message that arrives for a
+ * full queue is dropped, as if the network had lost it, so that one port that
+ * is not being read cannot hold up delivery to the others.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of <tt>BlockingQueue</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
@@ -26,9 +32,11 @@ public class PostOffice {
         messageSent = new Semaphore(0);
         sendLock = new Lock();
 
-        queues = new SynchList[MailMessage.portLimit];
+        int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+
+        queues = newQueues(MailMessage.portLimit);
         for (int i = 0; i < queues.length; i++)
-            queues[i] = new SynchList();
+            queues[i] = new BlockingQueue<MailMessage>(capacity);
 
         Runnable receiveHandler = new Runnable() {
             public void run() {
@@ -51,6 +59,15 @@ public class PostOffice {
         t.fork();
     }
 
+    /**
+     * Allocate an array of message queues. Java cannot create an array of a
+     * generic type, so the array is created raw.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static BlockingQueue<MailMessage>[] newQueues(int count) {
+        return new BlockingQueue[count];
+    }
+
     /**
      * Retrieve a message on the specified port, waiting if necessary.
      *
@@ -64,7 +81,7 @@ public class PostOffice {
 
         Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-        MailMessage mail = (MailMessage) queues[port].removeFirst();
+        MailMessage mail = queues[port].take();
 
         if (Lib.test(dbgNet))
             System.out.println("got mail on port " + port + ": " + mail);
@@ -72,6 +89,25 @@ public class PostOffice {
         return mail;
     }
 
+    /**
+     * Retrieve a message on the specified port, waiting at most
+     * <i>timeout</i> ticks.
+     *
+     * @param port
+     *            the port on which to wait for a message.
+     * @param timeout
+     *            the most ticks to wait.
+     *
+     * @return the message received, or <tt>null</tt> if none arrived in time.
+     */
+    public MailMessage receive(int port, long timeout) {
+        Lib.assertTrue(port >= 0 && port < queues.length && timeout >= 0);
+
+        Lib.debug(dbgNet, "waiting " + timeout + " ticks for mail on port " + port);
+
+        return queues[port].poll(timeout);
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -93,7 +129,8 @@ public class PostOffice {
                 System.out.println("delivering mail to port " + mail.dstPort + ": " + mail);
 
             // atomically add message to the mailbox and wake a waiting thread
-            queues[mail.dstPort].add(mail);
+            if (!queues[mail.dstPort].offer(mail))
+                Lib.debug(dbgNet, "mailbox full, dropping mail to port " + mail.dstPort);
         }
     }
 
@@ -129,7 +166,7 @@ public class PostOffice {
         messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BlockingQueue<MailMessage>[] queues;
     private Semaphore messageReceived; // V'd when a message can be dequeued
     private Semaphore messageSent; // V'd when a message can be queued
     private Lock sendLock;
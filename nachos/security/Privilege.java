@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by a number of user ticks at once,
+	 * without checking for interrupts. No interrupt may fall due in that
+	 * time.
+	 *
+	 * @param userTicks	the number of user instructions executed.
+	 */
+	public void tickBatch(long userTicks);
+
+	/**
+	 * Return the number of user ticks that can elapse before an interrupt
+	 * falls due. Those ticks can be accounted for with
+	 * <tt>tickBatch()</tt> instead of one <tt>tick()</tt> each.
+	 *
+	 * @return	the number of ticks that can be batched.
+	 */
+	public long userTicksUntilDue();
     }
 
     /**
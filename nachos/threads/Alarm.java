@@ -1,44 +1,43 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
-import java.util.Comparator;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary heap ordered by wake time. Each entry
+ * knows its place in the heap, so that a thread woken early by something else
+ * can take its entry out in logarithmic time. The entries used by
+ * <tt>waitUntil()</tt> and <tt>sleepFor()</tt> are recycled, so sleeping does
+ * not allocate once the pool has grown to the number of sleepers.
  */
 public class Alarm {
-    private static class KThreadWaitingPair {
-        KThreadWaitingPair(KThread thread, long finishTime) {
-            this.thread = thread;
-            this.finishTime = finishTime;
-        }
-
-        KThread getThread() {
-            return thread;
-        }
-
-        long getFinishTime() {
-            return finishTime;
+    /**
+     * A thread's pending wake-up. One returned by <tt>wakeAfter()</tt> can be
+     * cancelled with <tt>cancel()</tt>.
+     */
+    public static final class Wakeup {
+        private Wakeup() {
         }
 
         private KThread thread;
         private long finishTime;
-    }
-
-    private static class KThreadWaitingPairComparator implements Comparator<KThreadWaitingPair> {
-        @Override
-        public int compare(KThreadWaitingPair x, KThreadWaitingPair y) {
-            long delta = x.getFinishTime() - y.getFinishTime();
-            
-            return delta == 0 ? 0 : (delta > 0 ? -1 : 1);
-        }
+        /** The queue the thread is also waiting on, if any. */
+        private ThreadQueue queue;
+        /** The place of this entry in the heap, or 0 if it is not there. */
+        private int index = 0;
+        /** Whether the timer woke the thread. */
+        private boolean fired;
+        /** Whether this entry goes back to the pool once it is done with. */
+        private boolean pooled;
     }
 
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-     * alarm's callback.
+     * alarm's callback, and arrange for its counters to be printed when Nachos
+     * halts.
      *
      * <p>
      * <b>Note</b>: Nachos will not function correctly with more than one alarm.
@@ -49,29 +48,57 @@ public class Alarm {
                 timerInterrupt();
             }
         });
+
+        Machine.addStatsReport(new Runnable() {
+            public void run() {
+                System.out.println("Alarm: wakeups " + numWakeups + ", yields skipped " + numYieldsSkipped);
+            }
+        });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread that
-     * should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * that is due, then causes the current thread to yield if another thread
+     * is ready and either the scheduler's time slice for the current thread
+     * has run out or one of the woken threads outranks it.
+     *
+     * @see nachos.threads.Scheduler#timerTick
      */
     public void timerInterrupt() {
         boolean intStatus = Machine.interrupt().disable();
 
+        Scheduler scheduler = ThreadedKernel.scheduler;
+        KThread current = KThread.currentThread();
+
+        boolean outranked = false;
         long currentTime = Machine.timer().getTime();
-        while (true) {
-            KThreadWaitingPair top = waitQueue.peek();
-            if (top != null && top.getFinishTime() <= currentTime) {
-                waitQueue.poll().getThread().ready();                    
-            } else {
-                break;
+        while (heapSize > 0 && heap[1].finishTime <= currentTime) {
+            Wakeup top = heap[1];
+            remove(top);
+
+            // a thread that has been given what it waited for on its queue
+            // is already ready, and must not be readied again
+            if (top.queue == null || top.queue.cancel(top.thread)) {
+                top.fired = true;
+                top.thread.ready();
+                numWakeups++;
+
+                if (!outranked)
+                    outranked = scheduler.getEffectivePriority(top.thread) >
+                        scheduler.getEffectivePriority(current);
             }
         }
 
+        boolean preempt = scheduler.timerTick() || outranked;
+        if (preempt && !KThread.hasReadyThread()) {
+            preempt = false;
+            numYieldsSkipped++;
+        }
+
         Machine.interrupt().restore(intStatus);
-        KThread.currentThread().yield();
+        if (preempt)
+            KThread.currentThread().yield();
     }
 
     /**
@@ -88,20 +115,194 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
         long wakeTime = Machine.timer().getTime() + x;
-        KThreadWaitingPair pair = new KThreadWaitingPair(KThread.currentThread(), wakeTime);
     
         boolean intStatus = Machine.interrupt().disable();
 
-        waitQueue.add(pair);
+        Wakeup wakeup = allocate(wakeTime, null);
+
+        insert(wakeup);
         KThread.sleep();
 
+        free(wakeup);
+
         Machine.interrupt().restore(intStatus);
     }
 
-    KThreadWaitingPairComparator pqComparator = new KThreadWaitingPairComparator();
-    PriorityQueue<KThreadWaitingPair> waitQueue = new PriorityQueue<KThreadWaitingPair>(pqComparator);
+    /**
+     * Block the current thread, which has just called
+     * <tt>waitForAccess()</tt> on <i>queue</i>, until either it is returned
+     * from <tt>queue.nextThread()</tt> and readied, or at least <i>x</i> ticks
+     * have passed. In the second case the timer interrupt handler takes the
+     * thread off <i>queue</i> with <tt>cancel()</tt> before readying it, so
+     * that it is woken exactly once. Interrupts must be disabled.
+     *
+     * @param x
+     *            the maximum number of clock ticks to wait.
+     * @param queue
+     *            the queue the current thread is waiting on.
+     * @return <tt>true</tt> if the time ran out.
+     */
+    public boolean sleepFor(long x, ThreadQueue queue) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Wakeup wakeup = allocate(Machine.timer().getTime() + x, queue);
+
+        insert(wakeup);
+        KThread.sleep();
+
+        if (wakeup.index != 0)
+            remove(wakeup);
+
+        boolean fired = wakeup.fired;
+        free(wakeup);
+        return fired;
+    }
+
+    /**
+     * Arrange for the current thread to be readied during the first timer
+     * interrupt at least <i>x</i> ticks from now, unless the returned wake-up
+     * is cancelled first. The thread must be blocked in
+     * <tt>KThread.sleep()</tt> by then. Interrupts must be disabled.
+     *
+     * @param x
+     *            the minimum number of clock ticks to wait.
+     * @return a handle with which to cancel the wake-up.
+     */
+    public Wakeup wakeAfter(long x) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Wakeup wakeup = new Wakeup();
+        wakeup.thread = KThread.currentThread();
+        wakeup.finishTime = Machine.timer().getTime() + x;
+
+        insert(wakeup);
+        return wakeup;
+    }
+
+    /**
+     * Cancel a wake-up returned by <tt>wakeAfter()</tt>, if it is still
+     * pending. Interrupts must be disabled.
+     *
+     * @param wakeup
+     *            the wake-up to cancel.
+     * @return <tt>true</tt> if the wake-up was pending, or <tt>false</tt> if
+     *         the thread has already been woken by it.
+     */
+    public boolean cancel(Wakeup wakeup) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(!wakeup.pooled);
+
+        if (wakeup.index == 0)
+            return false;
+
+        remove(wakeup);
+        return true;
+    }
+
+    /**
+     * Take a wake-up from the pool, or make a new one.
+     */
+    private Wakeup allocate(long finishTime, ThreadQueue queue) {
+        Wakeup wakeup = freeCount > 0 ? pool[--freeCount] : new Wakeup();
+
+        wakeup.thread = KThread.currentThread();
+        wakeup.finishTime = finishTime;
+        wakeup.queue = queue;
+        wakeup.fired = false;
+        wakeup.pooled = true;
+        return wakeup;
+    }
+
+    /**
+     * Return a wake-up that is no longer in the heap to the pool.
+     */
+    private void free(Wakeup wakeup) {
+        Lib.assertTrue(wakeup.pooled && wakeup.index == 0);
+
+        wakeup.thread = null;
+        wakeup.queue = null;
+
+        if (freeCount == pool.length) {
+            Wakeup[] newPool = new Wakeup[pool.length * 2];
+            System.arraycopy(pool, 0, newPool, 0, pool.length);
+            pool = newPool;
+        }
+        pool[freeCount++] = wakeup;
+    }
+
+    private void insert(Wakeup wakeup) {
+        if (heapSize + 1 == heap.length) {
+            Wakeup[] newHeap = new Wakeup[heap.length * 2];
+            System.arraycopy(heap, 0, newHeap, 0, heap.length);
+            heap = newHeap;
+        }
+
+        heap[++heapSize] = wakeup;
+        wakeup.index = heapSize;
+        siftUp(heapSize);
+    }
+
+    private void remove(Wakeup wakeup) {
+        int index = wakeup.index;
+        wakeup.index = 0;
+
+        Wakeup last = heap[heapSize];
+        heap[heapSize--] = null;
+
+        if (last != wakeup) {
+            heap[index] = last;
+            last.index = index;
+            siftDown(siftUp(index));
+        }
+    }
+
+    private int siftUp(int index) {
+        Wakeup wakeup = heap[index];
+
+        while (index > 1 && wakeup.finishTime < heap[index / 2].finishTime) {
+            heap[index] = heap[index / 2];
+            heap[index].index = index;
+            index /= 2;
+        }
+
+        heap[index] = wakeup;
+        wakeup.index = index;
+        return index;
+    }
+
+    private int siftDown(int index) {
+        Wakeup wakeup = heap[index];
+
+        while (index * 2 <= heapSize) {
+            int child = index * 2;
+            if (child < heapSize && heap[child + 1].finishTime < heap[child].finishTime)
+                child++;
+            if (heap[child].finishTime >= wakeup.finishTime)
+                break;
+
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+
+        heap[index] = wakeup;
+        wakeup.index = index;
+        return index;
+    }
+
+    /** The sleeping threads, as a heap indexed from 1. */
+    private Wakeup[] heap = new Wakeup[16];
+    private int heapSize = 0;
+
+    /** The recycled wake-ups. */
+    private Wakeup[] pool = new Wakeup[16];
+    private int freeCount = 0;
+
+    /** The number of sleeping threads woken by this alarm. */
+    private int numWakeups = 0;
+    /** The number of timer interrupts that did not yield because no other thread was ready. */
+    private int numYieldsSkipped = 0;
 
     private static class WaitingTest implements Runnable {
         public WaitingTest(Alarm alarm, long waitTime) {
@@ -125,8 +326,7 @@ public class Alarm {
     private static void doSingleWaitingTest() {
         System.out.println("[test:Alarm] single waiting test started");
 
-        Alarm a = new Alarm();
-        KThread t = new KThread(new WaitingTest(a, 500));
+        KThread t = new KThread(new WaitingTest(ThreadedKernel.alarm, 500));
         t.fork();
         t.join();
 
@@ -136,10 +336,9 @@ public class Alarm {
     private static void doMultipleWaitingTest() {
         System.out.println("[test:Alarm] multiple waiting test started");
 
-        Alarm a = new Alarm();
         KThread []pool = new KThread[5];
         for (int i = 0; i < 5; ++i) {
-            pool[i] = new KThread(new WaitingTest(a, 500 + i * 500));
+            pool[i] = new KThread(new WaitingTest(ThreadedKernel.alarm, 500 + i * 500));
             pool[i].fork();
         }
         for (int i = 0; i < 5; ++i) {
@@ -149,9 +348,51 @@ public class Alarm {
         System.out.println("[test:Alarm] multiple waiting test passed");
     }
 
+    private static void doCancelTest() {
+        System.out.println("[test:Alarm] cancel test started");
+
+        final Alarm alarm = ThreadedKernel.alarm;
+        final Alarm.Wakeup[] wakeup = new Alarm.Wakeup[1];
+        final long[] slept = new long[1];
+
+        KThread t = new KThread(new Runnable() {
+            public void run() {
+                boolean intStatus = Machine.interrupt().disable();
+                long start = Machine.timer().getTime();
+                wakeup[0] = alarm.wakeAfter(1000000);
+                KThread.sleep();
+                slept[0] = Machine.timer().getTime() - start;
+                Machine.interrupt().restore(intStatus);
+            }
+        });
+        t.fork();
+
+        // wake the sleeper ourselves, well before its alarm
+        while (wakeup[0] == null)
+            KThread.yield();
+
+        boolean intStatus = Machine.interrupt().disable();
+        Lib.assertTrue(alarm.cancel(wakeup[0]));
+        t.ready();
+        Machine.interrupt().restore(intStatus);
+
+        t.join();
+        Lib.assertTrue(slept[0] < 1000000);
+
+        // a wake-up that has fired can no longer be cancelled
+        intStatus = Machine.interrupt().disable();
+        wakeup[0] = alarm.wakeAfter(1000);
+        KThread.sleep();
+        Lib.assertTrue(!alarm.cancel(wakeup[0]));
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println("[test:Alarm] cancel test passed");
+    }
+
     public static void selfTest() {
         doSingleWaitingTest();
         doMultipleWaitingTest();
+        doCancelTest();
     }
 }
 
@@ -0,0 +1,274 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * A bounded first-in first-out queue that threads can wait on, stored in a
+ * fixed array. A thread that adds to a full queue waits for room, and a thread
+ * that removes from an empty queue waits for an item, either for as long as it
+ * takes or for at most a number of ticks, timed by the alarm.
+ *
+ * <p>
+ * Like <tt>Semaphore</tt>, a <tt>BlockingQueue</tt> is synchronized by
+ * disabling interrupts, and then only when a thread has to wait or be woken.
+ * Adding or removing items never allocates memory.
+ */
+public class BlockingQueue<T> {
+    /**
+     * Allocate a new, empty queue.
+     *
+     * @param capacity
+     *            the largest number of items the queue holds.
+     */
+    @SuppressWarnings("unchecked")
+    public BlockingQueue(int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        items = (T[]) new Object[capacity];
+    }
+
+    /**
+     * Add an item to the end of this queue, waiting for room if it is full.
+     *
+     * @param item
+     *            the item to add. Must not be <tt>null</tt>.
+     */
+    public void put(T item) {
+        offer(item, -1);
+    }
+
+    /**
+     * Add an item to the end of this queue if there is room.
+     *
+     * @param item
+     *            the item to add. Must not be <tt>null</tt>.
+     * @return <tt>true</tt> if the item was added.
+     */
+    public boolean offer(T item) {
+        return offer(item, 0);
+    }
+
+    /**
+     * Add an item to the end of this queue, waiting at most <i>timeout</i>
+     * ticks for room if it is full.
+     *
+     * @param item
+     *            the item to add. Must not be <tt>null</tt>.
+     * @param timeout
+     *            the most ticks to wait, or -1 to wait for as long as it
+     *            takes.
+     * @return <tt>true</tt> if the item was added.
+     */
+    public boolean offer(T item, long timeout) {
+        Lib.assertTrue(item != null);
+
+        long deadline = Machine.timer().getTime() + timeout;
+        while (count == items.length) {
+            if (timeout >= 0 && Machine.timer().getTime() >= deadline)
+                return false;
+
+            putting++;
+            await(putters, timeout < 0 ? -1 : deadline);
+            putting--;
+        }
+
+        items[(head + count) % items.length] = item;
+        count++;
+
+        if (taking > 0)
+            wake(takers, 1);
+        return true;
+    }
+
+    /**
+     * Remove the item at the front of this queue, waiting for one if it is
+     * empty.
+     *
+     * @return the item removed.
+     */
+    public T take() {
+        return poll(-1);
+    }
+
+    /**
+     * Remove the item at the front of this queue, if there is one.
+     *
+     * @return the item removed, or <tt>null</tt> if the queue was empty.
+     */
+    public T poll() {
+        return poll(0);
+    }
+
+    /**
+     * Remove the item at the front of this queue, waiting at most
+     * <i>timeout</i> ticks for one if it is empty.
+     *
+     * @param timeout
+     *            the most ticks to wait, or -1 to wait for as long as it
+     *            takes.
+     * @return the item removed, or <tt>null</tt> if the time ran out.
+     */
+    public T poll(long timeout) {
+        long deadline = Machine.timer().getTime() + timeout;
+        while (count == 0) {
+            if (timeout >= 0 && Machine.timer().getTime() >= deadline)
+                return null;
+
+            taking++;
+            await(takers, timeout < 0 ? -1 : deadline);
+            taking--;
+        }
+
+        T item = items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        count--;
+
+        if (putting > 0)
+            wake(putters, 1);
+        return item;
+    }
+
+    /**
+     * Remove up to <i>max</i> items from the front of this queue, without
+     * waiting, and add them to <i>c</i> in order.
+     *
+     * @param c
+     *            the collection to add the items to.
+     * @param max
+     *            the most items to remove.
+     * @return the number of items removed.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+        int amount = Math.min(max, count);
+
+        for (int i = 0; i < amount; i++) {
+            c.add(items[head]);
+            items[head] = null;
+            head = (head + 1) % items.length;
+        }
+        count -= amount;
+
+        if (putting > 0)
+            wake(putters, amount);
+        return amount;
+    }
+
+    /**
+     * Return the number of items in this queue.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return the largest number of items this queue holds.
+     */
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Wait on <i>waiters</i> until woken, or until <i>deadline</i> if it is
+     * not -1.
+     */
+    private void await(ThreadQueue waiters, long deadline) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        waiters.waitForAccess(KThread.currentThread());
+
+        if (deadline < 0)
+            KThread.sleep();
+        else
+            ThreadedKernel.alarm.sleepFor(deadline - Machine.timer().getTime(), waiters);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake up to <i>n</i> threads waiting on <i>waiters</i>.
+     */
+    private void wake(ThreadQueue waiters, int n) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread;
+        while (n-- > 0 && (thread = waiters.nextThread()) != null)
+            thread.ready();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Producer implements Runnable {
+        Producer(BlockingQueue<Integer> queue, int items) {
+            this.queue = queue;
+            this.items = items;
+        }
+
+        public void run() {
+            for (int i = 0; i < items; i++)
+                queue.put(i);
+        }
+
+        private BlockingQueue<Integer> queue;
+        private int items;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        System.out.println("[test:BlockingQueue] self test started");
+
+        // a producer runs ahead of the consumer only as far as the capacity
+        BlockingQueue<Integer> queue = new BlockingQueue<Integer>(4);
+        KThread producer = new KThread(new Producer(queue, 100)).setName("producer");
+        producer.fork();
+
+        for (int i = 0; i < 100; i++) {
+            Lib.assertTrue(queue.size() <= queue.capacity());
+            Lib.assertTrue(queue.take() == i);
+        }
+        producer.join();
+
+        // polling an empty queue and offering to a full one time out
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(queue.poll(2000) == null);
+        Lib.assertTrue(Machine.timer().getTime() >= start + 2000);
+
+        for (int i = 0; i < 4; i++)
+            Lib.assertTrue(queue.offer(i));
+        Lib.assertTrue(!queue.offer(4));
+
+        start = Machine.timer().getTime();
+        Lib.assertTrue(!queue.offer(4, 2000));
+        Lib.assertTrue(Machine.timer().getTime() >= start + 2000);
+
+        // a waiting producer is let in as soon as the queue is drained
+        producer = new KThread(new Producer(queue, 3)).setName("producer");
+        producer.fork();
+
+        LinkedList<Integer> drained = new LinkedList<Integer>();
+        while (drained.size() < 7) {
+            if (queue.drainTo(drained, 2) == 0)
+                KThread.yield();
+        }
+        producer.join();
+
+        Lib.assertTrue(drained.toString().equals("[0, 1, 2, 3, 0, 1, 2]"));
+
+        System.out.println("[test:BlockingQueue] self test passed");
+    }
+
+    /** The items in the queue, starting at <tt>head</tt>. */
+    private T[] items;
+    private int head = 0, count = 0;
+
+    /** The threads waiting for an item, and those waiting for room. */
+    private ThreadQueue takers = ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue putters = ThreadedKernel.scheduler.newThreadQueue(false);
+    /** The number of threads in <tt>takers</tt> and in <tt>putters</tt>. */
+    private int taking = 0, putting = 0;
+}
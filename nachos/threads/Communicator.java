@@ -9,12 +9,37 @@ import java.util.ArrayList;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * A communicator with a non-zero capacity is a bounded buffer instead: a
+ * speaker only waits while the buffer is full, and a listener only waits while
+ * it is empty. Words are heard in the order they were spoken. The batch
+ * operations <tt>speakAll()</tt> and <tt>listen(int[], int)</tt> move as many
+ * words as they can each time they hold the lock.
  */
 public class Communicator {
     /**
-     * Allocate a new communicator.
+     * Allocate a new communicator, on which every speaker waits for a
+     * listener.
      */
     public Communicator() {
+        this(0);
+    }
+
+    /**
+     * Allocate a new communicator that buffers up to <i>capacity</i> words.
+     *
+     * @param capacity
+     *            the number of words spoken but not yet heard that this
+     *            communicator holds, or 0 for every speaker to wait for a
+     *            listener.
+     */
+    public Communicator(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+
+        this.capacity = capacity;
+        if (capacity > 0)
+            buffer = new int[capacity];
     }
 
     /**
@@ -25,12 +50,28 @@ public class Communicator {
      * Does not return until this thread is paired up with a listening thread.
      * Exactly one listener should receive <i>word</i>.
      *
+     * <p>
+     * If this communicator has a buffer, only waits until there is room in
+     * it.
+     *
      * @param word
      *            the integer to transfer.
      */
     public void speak(int word) {
         mutex.acquire();
 
+        if (capacity > 0) {
+            while (count == capacity)
+                notFull.sleep();
+
+            buffer[(head + count) % capacity] = word;
+            count++;
+            notEmpty.wake();
+
+            mutex.release();
+            return;
+        }
+
         while (hasCachedMessage) {
             // System.out.println(" **** sender: waiting cached message.");
             sleepingSpeakers.sleep();
@@ -54,6 +95,19 @@ public class Communicator {
     public int listen() {
         mutex.acquire();
 
+        if (capacity > 0) {
+            while (count == 0)
+                notEmpty.sleep();
+
+            int word = buffer[head];
+            head = (head + 1) % capacity;
+            count--;
+            notFull.wake();
+
+            mutex.release();
+            return word;
+        }
+
         while (!hasCachedMessage) {
             // System.out.println(" **** recver: waiting message.");
             sleepingListeners.sleep();
@@ -69,6 +123,89 @@ public class Communicator {
         return message;
     }
 
+    /**
+     * Transfer every word in <i>words</i> to listeners, in order. If this
+     * communicator has a buffer, copies as many words into it as fit each time
+     * the lock is held, and only waits while it is full; words spoken by other
+     * threads may come between them when that happens. Otherwise each word
+     * waits for its own listener, as with <tt>speak()</tt>.
+     *
+     * @param words
+     *            the integers to transfer.
+     */
+    public void speakAll(int[] words) {
+        if (capacity == 0) {
+            for (int i = 0; i < words.length; i++)
+                speak(words[i]);
+            return;
+        }
+
+        mutex.acquire();
+
+        int spoken = 0;
+        while (spoken < words.length) {
+            while (count == capacity)
+                notFull.sleep();
+
+            int amount = Math.min(words.length - spoken, capacity - count);
+            int tail = (head + count) % capacity;
+            int first = Math.min(amount, capacity - tail);
+
+            System.arraycopy(words, spoken, buffer, tail, first);
+            System.arraycopy(words, spoken + first, buffer, 0, amount - first);
+            spoken += amount;
+            count += amount;
+
+            if (amount == 1)
+                notEmpty.wake();
+            else
+                notEmpty.wakeAll();
+        }
+
+        mutex.release();
+    }
+
+    /**
+     * Wait for at least one word to be spoken through this communicator, and
+     * then store up to <i>max</i> of the words spoken, in order, at the start
+     * of <i>out</i>. Without a buffer, this hears exactly one word.
+     *
+     * @param out
+     *            where to store the words heard.
+     * @param max
+     *            the largest number of words to hear, at least 1.
+     * @return the number of words heard.
+     */
+    public int listen(int[] out, int max) {
+        Lib.assertTrue(max >= 1 && max <= out.length);
+
+        if (capacity == 0) {
+            out[0] = listen();
+            return 1;
+        }
+
+        mutex.acquire();
+
+        while (count == 0)
+            notEmpty.sleep();
+
+        int amount = Math.min(max, count);
+        int first = Math.min(amount, capacity - head);
+
+        System.arraycopy(buffer, head, out, 0, first);
+        System.arraycopy(buffer, 0, out, first, amount - first);
+        head = (head + amount) % capacity;
+        count -= amount;
+
+        if (amount == 1)
+            notFull.wake();
+        else
+            notFull.wakeAll();
+
+        mutex.release();
+        return amount;
+    }
+
     private Lock mutex = new Lock();
     private Condition sleepingSpeakers = new Condition(mutex);
     private Condition sleepingListeners = new Condition(mutex);
@@ -77,6 +214,13 @@ public class Communicator {
     private boolean hasCachedMessage;
     private int cachedMessage;
 
+    /** The words spoken but not yet heard, starting at <tt>head</tt>. */
+    private int capacity;
+    private int[] buffer;
+    private int head = 0, count = 0;
+    private Condition2 notFull = new Condition2(mutex);
+    private Condition2 notEmpty = new Condition2(mutex);
+
     private static class TestSender implements Runnable {
         public TestSender(Communicator c, int start) {
             this.c = c;
@@ -166,9 +310,75 @@ public class Communicator {
         System.out.println("[test:Communicator] multi-agent pingpong test passed");
     }
 
+    private static class BatchSender implements Runnable {
+        BatchSender(Communicator c, int words, int batch) {
+            this.c = c;
+            this.words = words;
+            this.batch = batch;
+        }
+
+        public void run() {
+            int[] chunk = new int[batch];
+            for (int i = 0; i < words; i += batch) {
+                for (int j = 0; j < batch; j++)
+                    chunk[j] = i + j;
+                c.speakAll(chunk);
+            }
+        }
+
+        private Communicator c;
+        private int words, batch;
+    }
+
+    /**
+     * Pass <i>words</i> words from one thread to another through a
+     * communicator with the specified capacity, <i>batch</i> at a time, and
+     * check they arrive in order. If <i>report</i> is set, also report how
+     * long it took.
+     */
+    private static void doPipelineTest(int capacity, int words, int batch, boolean report) {
+        Communicator c = new Communicator(capacity);
+        KThread sender = new KThread(new BatchSender(c, words, batch)).setName("batch sender");
+
+        long ticks = Machine.timer().getTime();
+        long start = System.nanoTime();
+
+        sender.fork();
+
+        int[] out = new int[batch];
+        int heard = 0;
+        while (heard < words) {
+            int amount = c.listen(out, batch);
+            for (int i = 0; i < amount; i++)
+                Lib.assertTrue(out[i] == heard + i);
+            heard += amount;
+        }
+        sender.join();
+
+        if (report) {
+            ticks = Machine.timer().getTime() - ticks;
+            long ms = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("*** capacity " + capacity + ", batches of " + batch +
+                ": " + words + " words in " + ticks + " ticks, " + ms + " ms");
+        }
+    }
+
+    /**
+     * Test if this module is working. If <tt>Communicator.benchmark</tt> is
+     * set, also report how long each pipeline took.
+     */
     public static void selfTest() {
         doPingpongTest();
         doMutliAgentPingpongTest();
+
+        boolean report = Config.getBoolean("Communicator.benchmark", false);
+
+        System.out.println("[test:Communicator] pipeline test started");
+        doPipelineTest(0, 2000, 1, report);
+        doPipelineTest(16, 2000, 1, report);
+        doPipelineTest(64, 2000, 16, report);
+        System.out.println("[test:Communicator] pipeline test passed");
     }
 }
 
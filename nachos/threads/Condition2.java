@@ -38,6 +38,7 @@ public class Condition2 {
 
         KThread thread = KThread.currentThread();
         conditionLock.release();
+        waiting++;
         waitQueue.waitForAccess(thread);
         KThread.sleep();
         conditionLock.acquire();
@@ -45,6 +46,38 @@ public class Condition2 {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically release the associated lock and go to sleep on this condition
+     * variable until another thread wakes it, or until at least <i>ticks</i>
+     * ticks have passed. The current thread must hold the associated lock,
+     * and reacquires it before <tt>sleepFor()</tt> returns.
+     *
+     * @param ticks
+     *            the most ticks to sleep.
+     * @return <tt>true</tt> if another thread woke this one.
+     */
+    public boolean sleepFor(long ticks) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        conditionLock.release();
+
+        waiting++;
+        waitQueue.waitForAccess(thread);
+        boolean timedOut = ThreadedKernel.alarm.sleepFor(ticks, waitQueue);
+        if (timedOut)
+            waiting--;
+
+        conditionLock.acquire();
+
+        Machine.interrupt().restore(intStatus);
+
+        return !timedOut;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -52,10 +85,14 @@ public class Condition2 {
     public void wake() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+        if (waiting == 0)
+            return;
+
         boolean intStatus = Machine.interrupt().disable();
         
         KThread thread = waitQueue.nextThread();
         if (thread != null) {
+            waiting--;
             thread.ready();
         }
 
@@ -69,12 +106,16 @@ public class Condition2 {
     public void wakeAll() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+        if (waiting == 0)
+            return;
+
         boolean intStatus = Machine.interrupt().disable();
 
         KThread thread;
         while (true) {
             thread = waitQueue.nextThread();
             if (thread != null) {
+                waiting--;
                 thread.ready();
             } else {
                 break;
@@ -134,10 +175,19 @@ public class Condition2 {
         }
         pingLock.release();
         p.join();
+
+        // a timed sleep returns on its own when no one wakes it
+        pingLock.acquire();
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(!ping.sleepFor(1000));
+        Lib.assertTrue(Machine.timer().getTime() >= start + 1000);
+        pingLock.release();
         System.out.println("[test:Condition2] self test passed");
     }
 
     private Lock conditionLock;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+    /** The number of threads in <tt>waitQueue</tt>. */
+    private int waiting = 0;
 }
 
@@ -0,0 +1,244 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A priority scheduler with an earliest-deadline-first real-time class.
+ *
+ * <p>
+ * Threads made periodic with <tt>KThread.setRealTime()</tt> always run ahead
+ * of other threads, and among themselves the thread whose current job has the
+ * earliest absolute deadline runs first. All other threads are scheduled by
+ * priority, exactly as by a <tt>PriorityScheduler</tt>.
+ *
+ * <p>
+ * A real-time thread is admitted only if the sum, over all admitted threads,
+ * of budget divided by relative deadline stays at most 1. When every deadline
+ * equals its period this is exactly the condition under which EDF meets every
+ * deadline; otherwise it is a safe approximation. While it is admitted, a
+ * real-time thread has the maximum priority, and donates it through locks and
+ * joins like any other thread.
+ */
+public class EDFScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param transferPriority
+     *            <tt>true</tt> if this queue should transfer priority from
+     *            waiting threads to the owning thread.
+     * @return a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new EDFQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new EDFThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+                                 long budget) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        double density = (double) budget / deadline;
+        if (reservedDensity + density > 1.0 + 1e-9) {
+            Lib.debug(dbgEDF, "rejecting " + thread + ": density " + density +
+                " with " + reservedDensity + " reserved");
+            return false;
+        }
+
+        reservedDensity += density;
+
+        EDFThreadState state = (EDFThreadState) getThreadState(thread);
+        state.density = density;
+        state.normalPriority = state.getPriority();
+        state.setPriority(priorityMaximum);
+
+        return true;
+    }
+
+    public void dismissRealTime(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        EDFThreadState state = (EDFThreadState) getThreadState(thread);
+        reservedDensity = Math.max(0, reservedDensity - state.density);
+        state.density = 0;
+        state.setPriority(state.normalPriority);
+    }
+
+    /**
+     * Return the share of the processor reserved by the admitted real-time
+     * threads.
+     */
+    public double getReservedDensity() {
+        return reservedDensity;
+    }
+
+    private double reservedDensity = 0;
+
+    private static final char dbgEDF = 'e';
+
+    /**
+     * A <tt>PriorityQueue</tt> that also keeps its waiting real-time threads
+     * ordered by absolute deadline, and dequeues them first.
+     */
+    protected class EDFQueue extends PriorityScheduler.PriorityQueue {
+        EDFQueue(boolean transferPriority) {
+            super(transferPriority);
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            super.waitForAccess(thread);
+
+            if (thread.isRealTime()) {
+                EDFThreadState state = (EDFThreadState) getThreadState(thread);
+                state.queuedDeadline = thread.getAbsoluteDeadline();
+                state.arrival = arrivals++;
+                realTime.add(state);
+            }
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            realTime.remove(getThreadState(thread));
+
+            super.acquire(thread);
+        }
+
+        public boolean cancel(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (state.linkedQueue == this)
+                realTime.remove(state);
+
+            return super.cancel(thread);
+        }
+
+        protected ThreadState pickNextThread() {
+            if (!realTime.isEmpty())
+                return realTime.first();
+
+            return super.pickNextThread();
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (EDFThreadState state : realTime)
+                System.out.println("  " + state.getThread() + " deadline " +
+                    state.queuedDeadline);
+
+            super.print();
+        }
+
+        /** The waiting real-time threads, earliest deadline first. */
+        private TreeSet<EDFThreadState> realTime =
+            new TreeSet<EDFThreadState>(new Comparator<EDFThreadState>() {
+                public int compare(EDFThreadState a, EDFThreadState b) {
+                    if (a.queuedDeadline != b.queuedDeadline)
+                        return a.queuedDeadline < b.queuedDeadline ? -1 : 1;
+                    if (a.arrival != b.arrival)
+                        return a.arrival < b.arrival ? -1 : 1;
+                    return 0;
+                }
+            });
+        /** The number of real-time threads that have joined this queue. */
+        private long arrivals = 0;
+    }
+
+    protected class EDFThreadState extends PriorityScheduler.ThreadState {
+        public EDFThreadState(KThread thread) {
+            super(thread);
+        }
+
+        /** The share of the processor reserved for this thread. */
+        protected double density;
+        /** The priority to return to when the thread is dismissed. */
+        protected int normalPriority;
+        /** The absolute deadline this thread was queued with. */
+        protected long queuedDeadline;
+        /** When this thread joined its queue. */
+        protected long arrival;
+    }
+
+    private static class PeriodicTest implements Runnable {
+        PeriodicTest(int jobs, int work, int[] order, int index) {
+            this.jobs = jobs;
+            this.work = work;
+            this.order = order;
+            this.index = index;
+        }
+
+        public void run() {
+            for (int i = 0; i < jobs; i++) {
+                order[order[0]++ % (order.length - 1) + 1] = index;
+
+                for (int j = 0; j < work; j++) {
+                    boolean intStatus = Machine.interrupt().disable();
+                    Machine.interrupt().restore(intStatus);
+                }
+
+                KThread.waitForNextPeriod();
+            }
+        }
+
+        private int jobs, work, index;
+        private int[] order;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        System.out.println("[test:EDFScheduler] self test started");
+
+        EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+
+        // three threads released together run in order of their deadlines
+        // even though they were forked in the opposite order; their densities
+        // add up to 0.9, so a fourth thread of density 0.2 is refused
+        long[] deadlines = new long[] { 30000, 20000, 10000 };
+        int[] order = new int[4];
+        KThread[] threads = new KThread[3];
+        for (int i = 0; i < 3; i++) {
+            threads[i] = new KThread(new PeriodicTest(1, 50, order, i)).setName("edf" + i);
+            Lib.assertTrue(threads[i].setRealTime(deadlines[i], deadlines[i], deadlines[i] * 3 / 10));
+        }
+
+        KThread refused = new KThread(new PeriodicTest(1, 0, order, 0));
+        Lib.assertTrue(!refused.setRealTime(10000, 10000, 2000));
+
+        for (int i = 0; i < 3; i++)
+            threads[i].fork();
+        for (int i = 0; i < 3; i++)
+            threads[i].join();
+
+        Lib.assertTrue(order[0] == 3 && order[1] == 2 && order[2] == 1 && order[3] == 0);
+        Lib.assertTrue(scheduler.getReservedDensity() < 1e-9);
+
+        // a periodic thread with a loose budget makes all its deadlines
+        KThread periodic = new KThread(new PeriodicTest(5, 20, new int[2], 0)).setName("edf periodic");
+        Lib.assertTrue(periodic.setRealTime(5000, 4000, 1000));
+        periodic.fork();
+        periodic.join();
+        Lib.assertTrue(periodic.getDeadlineMisses() == 0);
+
+        System.out.println("[test:EDFScheduler] self test passed");
+    }
+}
@@ -60,6 +60,9 @@ public class KThread {
             tcb = new TCB();
         } else {
             readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            ThreadedKernel.scheduler.setReadyQueue(readyQueue);
+            if (ThreadedKernel.schedulerStats != null)
+                readyQueue = ThreadedKernel.schedulerStats.instrument(readyQueue);
             readyQueue.acquire(this);
 
             currentThread = this;
@@ -68,6 +71,12 @@ public class KThread {
             restoreState();
 
             createIdleThread();
+
+            Machine.addStatsReport(new Runnable() {
+                public void run() {
+                    printDeadlineMisses();
+                }
+            });
         }
     }
 
@@ -129,6 +138,15 @@ public class KThread {
         return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the unique identifier of this thread.
+     *
+     * @return the identifier of this thread.
+     */
+    public int getID() {
+        return id;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another thread.
      */
@@ -206,6 +224,12 @@ public class KThread {
 
         currentThread.status = statusFinished;
 
+        if (ThreadedKernel.schedulerStats != null)
+            ThreadedKernel.schedulerStats.finish(currentThread);
+
+        if (currentThread.isRealTime())
+            ThreadedKernel.scheduler.dismissRealTime(currentThread);
+
         // currentThread.joinLock.acquire();
         // currentThread.joinCondition.wakeAll();
         // currentThread.joinLock.release();
@@ -276,13 +300,30 @@ public class KThread {
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
 
+        if (status == statusBlocked)
+            ThreadedKernel.scheduler.threadWoken(this);
+
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            readyCount++;
+        }
 
         Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Test if any thread other than the idle thread is on the ready queue.
+     * Must be called with interrupts disabled.
+     *
+     * @return <tt>true</tt> if another thread is ready to run.
+     */
+    static boolean hasReadyThread() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return readyCount > 0;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second call
@@ -301,6 +342,105 @@ public class KThread {
         }
     }
 
+    /**
+     * Make this thread a periodic real-time thread. Every <i>period</i> ticks
+     * it is released to run a job that needs at most <i>budget</i> ticks, and
+     * that must end, with a call to <tt>waitForNextPeriod()</tt>, within
+     * <i>deadline</i> ticks of its release. The first job is released now.
+     *
+     * <p>
+     * The scheduler may refuse the thread if it could not then meet every
+     * real-time thread's deadlines, or if it has no real-time class at all.
+     * This thread must be new or the current thread, and must not already be
+     * a real-time thread.
+     *
+     * @param period the ticks between releases.
+     * @param deadline the ticks from each release to its deadline, at most
+     *            <i>period</i>.
+     * @param budget the ticks each job needs, at most <i>deadline</i>.
+     * @return <tt>true</tt> if the scheduler admitted this thread.
+     */
+    public boolean setRealTime(long period, long deadline, long budget) {
+        Lib.assertTrue(status == statusNew || this == currentThread);
+        Lib.assertTrue(!isRealTime());
+        Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean admitted =
+            ThreadedKernel.scheduler.admitRealTime(this, period, deadline, budget);
+        if (admitted) {
+            this.period = period;
+            this.deadline = deadline;
+            this.release = Machine.timer().getTime();
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return admitted;
+    }
+
+    /**
+     * Test whether this thread is a real-time thread.
+     *
+     * @return <tt>true</tt> if this thread was admitted by
+     *         <tt>setRealTime()</tt>.
+     */
+    public boolean isRealTime() {
+        return period > 0;
+    }
+
+    /**
+     * Return the absolute deadline of this thread's current job, in ticks, or
+     * <tt>Long.MAX_VALUE</tt> if this is not a real-time thread.
+     *
+     * @return the time by which the current job must end.
+     */
+    public long getAbsoluteDeadline() {
+        return isRealTime() ? release + deadline : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the number of jobs of this thread that ended after their
+     * deadline.
+     *
+     * @return the number of deadlines this thread has missed.
+     */
+    public int getDeadlineMisses() {
+        return deadlineMisses;
+    }
+
+    /**
+     * End the current job of the current thread, which must be a real-time
+     * thread, and sleep until its next release. A job that ends late counts as
+     * a missed deadline, and a job whose release has already passed starts at
+     * once.
+     */
+    public static void waitForNextPeriod() {
+        KThread thread = currentThread;
+        Lib.assertTrue(thread.isRealTime());
+
+        long now = Machine.timer().getTime();
+        if (now > thread.getAbsoluteDeadline()) {
+            if (thread.deadlineMisses++ == 0)
+                missedDeadlines.add(thread);
+            numDeadlineMisses++;
+        }
+
+        thread.release += thread.period;
+        if (thread.release > now)
+            ThreadedKernel.alarm.waitUntil(thread.release - now);
+    }
+
+    /**
+     * Print the number of deadlines missed by real-time threads, in total and
+     * for each thread that missed any.
+     */
+    private static void printDeadlineMisses() {
+        System.out.println("Deadlines: missed " + numDeadlineMisses);
+        for (KThread thread : missedDeadlines)
+            System.out.println("  " + thread + ": missed " + thread.deadlineMisses);
+    }
+
     /**
      * Create the idle thread. Whenever there are no threads ready to be run,
      * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -332,9 +472,18 @@ public class KThread {
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread != null) {
+            readyCount--;
+        } else {
             nextThread = idleThread;
 
+            // only an interrupt can make another thread ready, so skip ahead
+            Machine.interrupt().idle();
+        }
+
+        if (ThreadedKernel.schedulerStats != null)
+            ThreadedKernel.schedulerStats.dispatch(currentThread, nextThread);
+
         nextThread.run();
     }
 
@@ -521,6 +670,14 @@ public class KThread {
     private Runnable target;
     private TCB tcb;
     private Semaphore joinSemaphore = new Semaphore(0);
+
+    /** The real-time period, or 0 if this is not a real-time thread. */
+    private long period = 0;
+    /** The real-time relative deadline. */
+    private long deadline;
+    /** The release time of the current real-time job. */
+    private long release;
+    private int deadlineMisses = 0;
     // private Lock joinLock = new Lock();
     // private Condition joinCondition = new Condition(joinLock);
 
@@ -533,8 +690,15 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on <tt>readyQueue</tt>. */
+    private static int readyCount = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+
+    /** The total number of deadlines missed by real-time threads. */
+    private static int numDeadlineMisses = 0;
+    /** The real-time threads that have missed a deadline, in order. */
+    private static List<KThread> missedDeadlines = new ArrayList<KThread>();
 }
 
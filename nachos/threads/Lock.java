@@ -17,6 +17,14 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * Acquiring a free lock, and releasing a lock no thread is waiting for, do not
+ * touch the interrupt status at all. A kernel thread is only ever interrupted
+ * when interrupts are enabled, so these are already atomic, and they avoid the
+ * kernel tick that re-enabling interrupts costs. The wait queue is only
+ * acquired on behalf of the holder when a second thread has to wait, which is
+ * the first time it can matter for priority donation.
  */
 public class Lock {
     /**
@@ -32,32 +40,83 @@ public class Lock {
     public void acquire() {
         Lib.assertTrue(!isHeldByCurrentThread());
 
-        boolean intStatus = Machine.interrupt().disable();
         KThread thread = KThread.currentThread();
 
-        if (lockHolder != null) {
-            waitQueue.waitForAccess(thread);
-            KThread.sleep();
-        } else {
-            waitQueue.acquire(thread);
+        if (lockHolder == null) {
             lockHolder = thread;
+            return;
         }
 
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (!contended) {
+            waitQueue.acquire(lockHolder);
+            contended = true;
+        }
+
+        waitQueue.waitForAccess(thread);
+        KThread.sleep();
+
         Lib.assertTrue(lockHolder == thread);
 
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, waiting at most <i>ticks</i> ticks for it
+     * to become free. The current thread must not already hold this lock.
+     *
+     * @param ticks
+     *            the most ticks to wait.
+     * @return <tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire(long ticks) {
+        Lib.assertTrue(!isHeldByCurrentThread());
+
+        KThread thread = KThread.currentThread();
+
+        if (lockHolder == null) {
+            lockHolder = thread;
+            return true;
+        }
+        if (ticks <= 0)
+            return false;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (!contended) {
+            waitQueue.acquire(lockHolder);
+            contended = true;
+        }
+
+        waitQueue.waitForAccess(thread);
+        boolean timedOut = ThreadedKernel.alarm.sleepFor(ticks, waitQueue);
+
+        Lib.assertTrue(timedOut != (lockHolder == thread));
+
+        Machine.interrupt().restore(intStatus);
+
+        return !timedOut;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
     public void release() {
         Lib.assertTrue(isHeldByCurrentThread());
 
+        if (!contended) {
+            lockHolder = null;
+            return;
+        }
+
         boolean intStatus = Machine.interrupt().disable();
 
+        // the next holder owns the wait queue as well
         if ((lockHolder = waitQueue.nextThread()) != null)
             lockHolder.ready();
+        else
+            contended = false;
 
         Machine.interrupt().restore(intStatus);
     }
@@ -71,6 +130,154 @@ public class Lock {
         return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Report the simulated and host time taken by <i>rounds</i> runs of an
+     * operation.
+     */
+    private static void measure(String name, int rounds, Runnable operation) {
+        long ticks = Machine.timer().getTime();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++)
+            operation.run();
+
+        long ns = System.nanoTime() - start;
+        ticks = Machine.timer().getTime() - ticks;
+
+        System.out.println("*** " + name + ": " + (float) ticks / rounds +
+            " ticks, " + ns / rounds + " ns per operation");
+    }
+
+    /**
+     * Measure the cost of uncontended lock and semaphore operations, next to
+     * the cost of disabling and restoring interrupts, which they used to pay
+     * on every call.
+     */
+    private static void benchmark() {
+        final int rounds = 100000;
+        final Lock lock = new Lock();
+        final Semaphore semaphore = new Semaphore(0);
+
+        measure("interrupt disable/restore", rounds, new Runnable() {
+            public void run() {
+                boolean intStatus = Machine.interrupt().disable();
+                Machine.interrupt().restore(intStatus);
+            }
+        });
+        measure("lock acquire/release", rounds, new Runnable() {
+            public void run() {
+                lock.acquire();
+                lock.release();
+            }
+        });
+        measure("semaphore V/P", rounds, new Runnable() {
+            public void run() {
+                semaphore.V();
+                semaphore.P();
+            }
+        });
+    }
+
+    /**
+     * Whether the scheduler donates priorities that <tt>selfTest()</tt> can
+     * check.
+     */
+    private static boolean donates() {
+        return ThreadedKernel.scheduler instanceof PriorityScheduler &&
+            !(ThreadedKernel.scheduler instanceof LotteryScheduler);
+    }
+
+    /**
+     * Test if this module is working. If <tt>Lock.benchmark</tt> is set, also
+     * report the cost of uncontended operations.
+     */
+    public static void selfTest() {
+        if (Config.getBoolean("Lock.benchmark", false))
+            benchmark();
+
+        System.out.println("[test:Lock] uncontended test started");
+
+        // uncontended operations do not touch the interrupt status, so they
+        // take no simulated time
+        final Lock lock = new Lock();
+        Semaphore semaphore = new Semaphore(0);
+
+        long ticks = Machine.timer().getTime();
+        lock.acquire();
+        lock.release();
+        semaphore.V();
+        semaphore.P();
+        Lib.assertTrue(Machine.timer().getTime() == ticks);
+
+        System.out.println("[test:Lock] uncontended test passed");
+
+        System.out.println("[test:Lock] hand-off test started");
+
+        // a thread that waits for a lock taken on the fast path gets it when
+        // the holder releases it, and donates its priority to the holder
+        // while it waits
+        final boolean[] held = new boolean[1];
+        KThread waiter = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                held[0] = true;
+                lock.release();
+            }
+        }).setName("waiter");
+
+        boolean intStatus = Machine.interrupt().disable();
+        if (donates())
+            ThreadedKernel.scheduler.setPriority(waiter, 7);
+        Machine.interrupt().restore(intStatus);
+
+        lock.acquire();
+        waiter.fork();
+        while (!lock.contended)
+            KThread.yield();
+
+        intStatus = Machine.interrupt().disable();
+        int effective = ThreadedKernel.scheduler.getEffectivePriority();
+        Machine.interrupt().restore(intStatus);
+        if (donates())
+            Lib.assertTrue(effective == 7);
+
+        Lib.assertTrue(!held[0]);
+        lock.release();
+        waiter.join();
+        Lib.assertTrue(held[0] && !lock.contended);
+
+        // the lock is free again
+        lock.acquire();
+        lock.release();
+
+        System.out.println("[test:Lock] hand-off test passed");
+
+        System.out.println("[test:Lock] timed acquire test started");
+
+        // a timed acquire gives up on a lock that is never released, and
+        // takes one that is released in time
+        lock.acquire();
+        final boolean[] acquired = new boolean[2];
+        waiter = new KThread(new Runnable() {
+            public void run() {
+                acquired[0] = lock.tryAcquire(1000);
+                acquired[1] = lock.tryAcquire(100000);
+                lock.release();
+            }
+        }).setName("waiter");
+        waiter.fork();
+
+        ThreadedKernel.alarm.waitUntil(5000);
+        lock.release();
+        waiter.join();
+
+        Lib.assertTrue(!acquired[0] && acquired[1]);
+
+        System.out.println("[test:Lock] timed acquire test passed");
+    }
+
     private KThread lockHolder = null;
+    /** Whether the wait queue has been acquired by <tt>lockHolder</tt>. */
+    private boolean contended = false;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 }
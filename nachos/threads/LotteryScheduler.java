@@ -50,10 +50,6 @@ public class LotteryScheduler extends PriorityScheduler {
         return Integer.MAX_VALUE;
     }
 
-    public static int add(long x, long y){
-        return (int)Math.min(getPriorityMaximum(), x + y);
-    }
-
     protected ThreadState getThreadState(KThread thread) {
         if (thread.schedulingState == null)
             thread.schedulingState = new LotteryThreadState(thread);
@@ -61,24 +57,85 @@ public class LotteryScheduler extends PriorityScheduler {
         return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Bring the ticket count of a thread up to date, and pass the change on
+     * along the chain of queues it waits on, the same way
+     * <tt>propagateDonation()</tt> does for priorities. Ticket counts are
+     * exact; only the <tt>int</tt> effective priority reported to callers
+     * saturates.
+     *
+     * @param state the thread whose own or received tickets changed.
+     */
+    protected void propagateTickets(LotteryThreadState state) {
+        int steps = 0;
+        long pass = ++donationEvents;
+
+        while (true) {
+            steps++;
+
+            long tickets = state.getPriority() + state.receivedTickets;
+            if (tickets == state.tickets)
+                break;
+
+            if (state.ticketPass == pass) {
+                Lib.debug(dbgDonation, "ticket cycle through " + state.getThread());
+                donationCycles++;
+                break;
+            }
+            if (maxDonationDepth > 0 && steps > maxDonationDepth) {
+                Lib.debug(dbgDonation, "ticket depth exceeded at " + state.getThread());
+                break;
+            }
+
+            state.ticketPass = pass;
+            state.setTickets(tickets);
+
+            LotteryQueue queue = (LotteryQueue) state.waitingQueue;
+            if (queue == null)
+                break;
+
+            queue.updateEffectivePriority(state);
+
+            LotteryThreadState holder = (LotteryThreadState) queue.acquiredState;
+            if (holder == null || !queue.transferPriority ||
+                queue.sumTickets == queue.donatedTickets)
+                break;
+
+            holder.receivedTickets += queue.sumTickets - queue.donatedTickets;
+            queue.donatedTickets = queue.sumTickets;
+            state = holder;
+        }
+
+        countDonationSteps(steps);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Each waiting thread has a slot in a Fenwick tree of ticket counts, so
+     * that a draw, an insertion, a removal and a change of tickets each take
+     * time logarithmic in the number of waiting threads.
+     *
+     * <p>
+     * A thread with <i>n</i> tickets holds <i>n</i>+1 chances in the draw, so
+     * that a thread with no tickets is not starved completely.
+     */
     protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
         LotteryQueue(boolean transferPriority) {
             super(transferPriority);
-            sumPriority = 0;
         }
 
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            ThreadState state = getThreadState(thread);
-            ThreadPriorityRecord record = new ThreadPriorityRecord(state, state.getEffectivePriority());
+            LotteryThreadState state = (LotteryThreadState) getThreadState(thread);
 
-            queue.add(record);
-            sumPriority = add(sumPriority, record.getPriority());
-            stateToRecord.put(record.getState(), record);
+            insert(state);
 
-            if (acquiredState != null) {
-                acquiredState.updateEffectivePriority();
+            LotteryThreadState holder = (LotteryThreadState) acquiredState;
+            if (holder != null && transferPriority && sumTickets != donatedTickets) {
+                holder.receivedTickets += sumTickets - donatedTickets;
+                donatedTickets = sumTickets;
+                holder.updateEffectivePriority();
             }
 
             state.waitForAccess(this);
@@ -87,93 +144,228 @@ public class LotteryScheduler extends PriorityScheduler {
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            ThreadState state = getThreadState(thread);
+            LotteryThreadState state = (LotteryThreadState) getThreadState(thread);
 
             if (acquiredState != null) {
-                acquiredState.release(this);
+                ThreadState previous = acquiredState;
+                acquiredState = null;
+                previous.release(this);
             }
 
-            if (stateToRecord.containsKey(state)) {
-                ThreadPriorityRecord record = stateToRecord.get(state);
-                boolean success = queue.remove(record);
-                if (success){
-                    sumPriority = add(sumPriority, -record.getPriority());
-                }
-                stateToRecord.remove(state);
+            if (state.linkedQueue == this) {
+                remove(state);
             }
 
             this.acquiredState = state;
             state.acquire(this);
         }
 
+        public void acquireShared(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryThreadState state = (LotteryThreadState) getThreadState(thread);
+
+            if (acquiredState == state) {
+                acquiredState = null;
+                state.release(this);
+            }
+
+            if (state.linkedQueue == this)
+                remove(state);
+
+            sharedStates.add(state);
+            state.acquireShared(this);
+        }
+
+        public boolean cancel(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryThreadState state = (LotteryThreadState) getThreadState(thread);
+            if (state.linkedQueue != this)
+                return false;
+
+            remove(state);
+            state.waitingQueue = null;
+
+            LotteryThreadState holder = (LotteryThreadState) acquiredState;
+            if (holder != null && transferPriority && sumTickets != donatedTickets) {
+                holder.receivedTickets += sumTickets - donatedTickets;
+                donatedTickets = sumTickets;
+                holder.updateEffectivePriority();
+            }
+            return true;
+        }
+
+        /**
+         * Draw the next thread, without removing it from this queue.
+         */
         protected ThreadState pickNextThread() {
-            if (!queue.isEmpty()) {
-                ThreadPriorityRecord[] array = queue.toArray(new ThreadPriorityRecord[0]);
-                long sum = 0;
-                for (ThreadPriorityRecord i : array) {
-                    if (i.getPriority() == Integer.MAX_VALUE)
-                        sum += 1;
-                    else
-                        sum += i.getPriority() + 1;
+            if (size == 0)
+                return null;
+
+            long chances = sumTickets + size;
+            long winner = (rng.nextLong() >>> 1) % chances;
+
+            // find the first slot whose prefix sum exceeds the winning chance
+            int position = 0;
+            for (int step = capacity; step > 0; step >>= 1) {
+                if (tree[position + step] <= winner) {
+                    winner -= tree[position + step];
+                    position += step;
                 }
-                long random = rng.nextLong() % sum;
-                ThreadPriorityRecord record = null;
-                for (ThreadPriorityRecord i : array) {
-                    if (i.getPriority() == Integer.MAX_VALUE)
-                        random -= 1;
-                    else
-                        random -= i.getPriority() + 1;
-                    if (random < 0) {
-                        record = i;
-                    }
-                }
-                Lib.assertTrue(record != null);
-                sumPriority = add(sumPriority, -record.getPriority());
-                queue.remove(record);
+            }
 
-                return record.getState();
+            Lib.assertTrue(slots[position + 1] != null);
+            return slots[position + 1];
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int slot = 1; slot <= highestSlot; slot++) {
+                if (slots[slot] != null)
+                    System.out.println("  " + slots[slot].getThread() + " tickets " +
+                        slots[slot].slotTickets);
             }
-            return null;
         }
 
-        public int getSumPriority() {
-            return sumPriority;
+        /**
+         * Return the total number of tickets held by the waiting threads.
+         */
+        public long getSumPriority() {
+            return sumTickets;
         }
 
-        public int getNaiveSumPriority() {
-            ThreadPriorityRecord[] array = queue.toArray(new ThreadPriorityRecord[0]);
-            int sum = 0;
-            for (ThreadPriorityRecord i : array) {
-                sum = add(sum, i.getPriority());
+        /**
+         * Return the total number of tickets held by the waiting threads,
+         * computed without the running total.
+         */
+        public long getNaiveSumPriority() {
+            long sum = 0;
+            for (int slot = 1; slot <= highestSlot; slot++) {
+                if (slots[slot] != null)
+                    sum += slots[slot].slotTickets;
             }
             return sum;
         }
 
-        public void printQueue() {
-            ThreadPriorityRecord[] array = queue.toArray(new ThreadPriorityRecord[0]);
-            for (ThreadPriorityRecord i : array) {
-                System.out.println("priority " + i.getPriority());
+        /**
+         * Update the chances of a waiting thread to match its tickets. This
+         * does not update the owning thread; see <tt>propagateTickets()</tt>.
+         */
+        public void updateEffectivePriority(ThreadState state) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            LotteryThreadState lotteryState = (LotteryThreadState) state;
+            if (lotteryState.linkedQueue == this) {
+                long delta = lotteryState.tickets - lotteryState.slotTickets;
+                lotteryState.slotTickets = lotteryState.tickets;
+                sumTickets += delta;
+                addChances(lotteryState.slot, delta);
             }
         }
 
-        public void updateEffectivePriority(ThreadState state) {
-            boolean intStatus = Machine.interrupt().disable();
+        /**
+         * Give a thread a chance in the next draw.
+         */
+        protected void insert(LotteryThreadState state) {
+            Lib.assertTrue(state.linkedQueue == null);
+
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (highestSlot == capacity)
+                    grow();
+                slot = ++highestSlot;
+            }
+
+            state.linkedQueue = this;
+            state.slot = slot;
+            state.slotTickets = state.tickets;
+            slots[slot] = state;
+
+            size++;
+            sumTickets += state.slotTickets;
+            addChances(slot, state.slotTickets + 1);
+        }
+
+        /**
+         * Take a thread out of the draw.
+         */
+        protected void remove(LotteryThreadState state) {
+            Lib.assertTrue(state.linkedQueue == this);
+
+            int slot = state.slot;
+
+            size--;
+            sumTickets -= state.slotTickets;
+            addChances(slot, -(state.slotTickets + 1));
+
+            slots[slot] = null;
+            state.linkedQueue = null;
+
+            if (size == 0) {
+                // start over, so the free list does not outlive a busy period
+                highestSlot = 0;
+                freeCount = 0;
+            } else {
+                freeSlots[freeCount++] = slot;
+            }
+        }
+
+        private void addChances(int slot, long delta) {
+            for (; slot <= capacity; slot += slot & -slot)
+                tree[slot] += delta;
+        }
+
+        /**
+         * Double the number of slots, rebuilding the tree in linear time.
+         */
+        private void grow() {
+            int newCapacity = capacity * 2;
+
+            LotteryThreadState[] newSlots = new LotteryThreadState[newCapacity + 1];
+            System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
 
-            ThreadPriorityRecord record = stateToRecord.get(state);
+            long[] newTree = new long[newCapacity + 1];
+            for (int slot = 1; slot <= newCapacity; slot++) {
+                if (newSlots[slot] != null)
+                    newTree[slot] += newSlots[slot].slotTickets + 1;
 
-            sumPriority = add(sumPriority, state.effectivePriority);
-            boolean success = queue.remove(record);
-            if (success) {
-                sumPriority = add(sumPriority, - record.getPriority());
+                int parent = slot + (slot & -slot);
+                if (parent <= newCapacity)
+                    newTree[parent] += newTree[slot];
             }
-            record.setPriority(state.effectivePriority);
-            queue.add(record);
 
-            Machine.interrupt().restore(intStatus);
+            int[] newFreeSlots = new int[newCapacity];
+            System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+
+            slots = newSlots;
+            tree = newTree;
+            freeSlots = newFreeSlots;
+            capacity = newCapacity;
         }
 
-        protected int sumPriority = 0;
+        /** The total number of tickets held by the waiting threads. */
+        protected long sumTickets = 0;
+        /** The tickets counted in the owning thread's received tickets. */
+        protected long donatedTickets = 0;
         protected Random rng = new Random();
+
+        /** The number of waiting threads. */
+        private int size = 0;
+        /** The number of slots; always a power of two. */
+        private int capacity = 8;
+        /** The highest slot handed out since the queue was last empty. */
+        private int highestSlot = 0;
+        /** The waiting thread in each slot, indexed from 1. */
+        private LotteryThreadState[] slots = new LotteryThreadState[capacity + 1];
+        /** The Fenwick tree of chances, indexed from 1. */
+        private long[] tree = new long[capacity + 1];
+        /** Slots below <tt>highestSlot</tt> that are not in use. */
+        private int[] freeSlots = new int[capacity];
+        private int freeCount = 0;
     }
 
     protected class LotteryThreadState extends PriorityScheduler.ThreadState {
@@ -181,18 +373,67 @@ public class LotteryScheduler extends PriorityScheduler {
             super(thread);
         }
 
+        /**
+         * Return the exact number of tickets of the associated thread: its
+         * own priority plus the tickets of every thread waiting on a queue it
+         * holds.
+         */
+        public long getTickets() {
+            return tickets;
+        }
+
+        protected void setTickets(long tickets) {
+            this.tickets = tickets;
+            setEffectivePriority((int) Math.min(tickets, Integer.MAX_VALUE));
+        }
+
         public void updateEffectivePriority() {
-            int sum = getPriority();
-            for (PriorityQueue q : acquiredQueues) {
-                sum = add(sum, ((LotteryQueue)q).getSumPriority());
-            }
+            propagateTickets(this);
+        }
 
-            if (getEffectivePriority() != sum) {
-                setEffectivePriority(sum);
-                if (waitingQueue != null) {
-                    waitingQueue.updateEffectivePriority(this);
-                }
+        public void acquire(PriorityQueue waitQueue) {
+            // see PriorityScheduler.ThreadState.acquire()
+            if (waitingQueue == waitQueue)
+                waitingQueue = null;
+
+            LotteryQueue queue = (LotteryQueue) waitQueue;
+            acquiredQueues.add(queue);
+            if (queue.transferPriority) {
+                queue.donatedTickets = queue.sumTickets;
+                receivedTickets += queue.donatedTickets;
             }
+            updateEffectivePriority();
+        }
+
+        /**
+         * Tickets are only transferred to a thread with exclusive access, so
+         * that sharing a queue does not multiply them.
+         */
+        public void acquireShared(PriorityQueue waitQueue) {
+            if (waitingQueue == waitQueue)
+                waitingQueue = null;
         }
+
+        public void release(PriorityQueue waitQueue) {
+            LotteryQueue queue = (LotteryQueue) waitQueue;
+            if (acquiredQueues.remove(queue) && queue.transferPriority)
+                receivedTickets -= queue.donatedTickets;
+            updateEffectivePriority();
+        }
+
+        // these are first set from the superclass constructor, so they must
+        // not have initializers
+
+        /** The tickets of the associated thread. */
+        protected long tickets;
+        /** The tickets donated by the queues this thread holds. */
+        protected long receivedTickets;
+        /** The last propagation that changed this thread's tickets. */
+        private long ticketPass;
+
+        /** The slot of this thread in <tt>linkedQueue</tt>. */
+        protected int slot;
+        /** The tickets counted for this thread in its slot. */
+        protected long slotTickets;
     }
 }
@@ -0,0 +1,363 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of several levels; the highest level is
+ * <tt>MLFQScheduler.levels - 1</tt>, and new threads start there. Threads are
+ * dequeued from the highest non-empty level, first-come first-serve within a
+ * level. Each timer interrupt charges the running thread one unit of its
+ * quantum, which is <tt>MLFQScheduler.quantum</tt> timer interrupts at the
+ * highest level and doubles at each level below it. A thread that uses up its
+ * quantum is moved down a level, and a thread that blocks, for example on a
+ * console read, is moved up a level when it wakes. Every
+ * <tt>MLFQScheduler.boostInterval</tt> timer interrupts, every thread is moved
+ * back to the highest level, so that no thread starves.
+ *
+ * <p>
+ * CPU-bound threads therefore sink to the long quanta of the lower levels,
+ * while interactive threads stay at the top and preempt them at the next
+ * timer interrupt after they wake.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+        levels = Config.getInteger("MLFQScheduler.levels", 4);
+        quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+        boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+
+        Lib.assertTrue(levels >= 1 && levels <= 30, "bad MLFQScheduler.levels");
+        Lib.assertTrue(quantum >= 1, "bad MLFQScheduler.quantum");
+        Lib.assertTrue(boostInterval >= 0, "bad MLFQScheduler.boostInterval");
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param transferPriority
+     *            ignored. Levels are not donated.
+     * @return a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new MLFQQueue();
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getLevel();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= 0 && priority < levels);
+
+        getThreadState(thread).setLevel(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == levels - 1) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == 0) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public void setReadyQueue(ThreadQueue readyQueue) {
+        this.readyQueue = (MLFQQueue) readyQueue;
+    }
+
+    /**
+     * Move a thread that blocked up a level, and give it a fresh quantum.
+     */
+    public void threadWoken(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        getThreadState(thread).promote();
+    }
+
+    /**
+     * Charge the current thread for one timer interrupt, moving it down a
+     * level if that uses up its quantum. Preempt it if it used up its quantum
+     * or if a thread at a higher level is ready to run.
+     *
+     * @return <tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerTick() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        timerTicks++;
+        if (boostInterval > 0 && timerTicks % boostInterval == 0)
+            boosts++;
+
+        ThreadState state = getThreadState(KThread.currentThread());
+        int level = state.getLevel();
+
+        if (++state.charge >= getQuantum(level)) {
+            if (level > 0)
+                state.level = level - 1;
+            state.charge = 0;
+            return true;
+        }
+
+        return readyQueue != null && readyQueue.getHighestLevel() > level;
+    }
+
+    /**
+     * Return the quantum, in timer interrupts, of a thread at the specified
+     * level.
+     */
+    public int getQuantum(int level) {
+        return quantum << (levels - 1 - level);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread
+     *            the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level, linked through the
+     * threads' <tt>ThreadState</tt>s, and a bitmap of the non-empty levels.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            link(state, state.getLevel());
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            int level = getHighestLevel();
+            if (level < 0)
+                return null;
+
+            ThreadState state = heads[level];
+            unlink(state);
+            return state.thread;
+        }
+
+        public boolean cancel(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (state.linkedQueue != this)
+                return false;
+
+            unlink(state);
+            return true;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            catchUp();
+            for (int level = levels - 1; level >= 0; level--) {
+                for (ThreadState state = heads[level]; state != null; state = state.next)
+                    System.out.print(state.thread + " (" + level + ") ");
+            }
+        }
+
+        /**
+         * Return the highest level of any waiting thread, or -1 if no thread
+         * is waiting.
+         */
+        int getHighestLevel() {
+            catchUp();
+            return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+        }
+
+        /**
+         * Apply any priority boosts since this queue was last used, by moving
+         * every waiting thread to the end of the highest level, in the order
+         * it would have been dequeued.
+         */
+        private void catchUp() {
+            if (boosted == boosts)
+                return;
+
+            boosted = boosts;
+
+            int top = levels - 1;
+            for (int level = top - 1; level >= 0; level--) {
+                while (heads[level] != null) {
+                    ThreadState state = heads[level];
+                    unlink(state);
+                    link(state, top);
+                }
+            }
+        }
+
+        void relink(ThreadState state) {
+            unlink(state);
+            link(state, state.getLevel());
+        }
+
+        private void link(ThreadState state, int level) {
+            Lib.assertTrue(state.linkedQueue == null);
+
+            catchUp();
+
+            state.linkedQueue = this;
+            state.linkedLevel = level;
+            state.next = null;
+            state.prev = tails[level];
+
+            if (tails[level] == null) {
+                heads[level] = state;
+                nonEmpty |= 1 << level;
+            } else {
+                tails[level].next = state;
+            }
+            tails[level] = state;
+        }
+
+        private void unlink(ThreadState state) {
+            Lib.assertTrue(state.linkedQueue == this);
+
+            int level = state.linkedLevel;
+
+            if (state.prev == null)
+                heads[level] = state.next;
+            else
+                state.prev.next = state.next;
+
+            if (state.next == null)
+                tails[level] = state.prev;
+            else
+                state.next.prev = state.prev;
+
+            if (heads[level] == null)
+                nonEmpty &= ~(1 << level);
+
+            state.linkedQueue = null;
+            state.next = state.prev = null;
+        }
+
+        /** The first and last waiting thread at each level. */
+        private ThreadState[] heads = new ThreadState[levels];
+        private ThreadState[] tails = new ThreadState[levels];
+        /** Bit <i>l</i> is set if some waiting thread is at level <i>l</i>. */
+        private int nonEmpty = 0;
+        /** The number of boosts applied to this queue. */
+        private long boosted = boosts;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of its quantum
+     * it has used, and its place in a queue.
+     */
+    protected class ThreadState {
+        ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Return the level of the associated thread, moving it to the highest
+         * level if there has been a boost since it was last checked.
+         */
+        int getLevel() {
+            if (boosted != boosts) {
+                boosted = boosts;
+                level = levels - 1;
+                charge = 0;
+            }
+
+            return level;
+        }
+
+        void setLevel(int level) {
+            getLevel();
+            this.level = level;
+            charge = 0;
+
+            if (linkedQueue != null)
+                linkedQueue.relink(this);
+        }
+
+        /**
+         * Move the associated thread up a level, and give it a fresh quantum.
+         */
+        void promote() {
+            if (getLevel() < levels - 1)
+                level++;
+            charge = 0;
+        }
+
+        KThread thread;
+        int level = levels - 1;
+        /** The timer interrupts charged against the current quantum. */
+        int charge = 0;
+        long boosted = boosts;
+
+        MLFQQueue linkedQueue;
+        int linkedLevel;
+        ThreadState prev, next;
+    }
+
+    /** The number of levels. */
+    protected int levels;
+    /** The quantum at the highest level, in timer interrupts. */
+    protected int quantum;
+    /** The timer interrupts between boosts, or 0 for no boosts. */
+    protected int boostInterval;
+
+    private long timerTicks = 0;
+    private long boosts = 0;
+    /** The queue that holds runnable threads. */
+    private MLFQQueue readyQueue = null;
+}
@@ -2,9 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.HashSet;
-import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -32,6 +32,7 @@ public class PriorityScheduler extends Scheduler {
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+        maxDonationDepth = Config.getInteger("PriorityScheduler.maxDonationDepth", 0);
     }
 
     /**
@@ -197,6 +198,128 @@ public class PriorityScheduler extends Scheduler {
         Machine.interrupt().restore(intStatus);
     }
 
+    private static class ChainTest implements Runnable {
+        ChainTest(Lock mine, Lock next, Semaphore held) {
+            this.mine = mine;
+            this.next = next;
+            this.held = held;
+        }
+
+        public void run() {
+            mine.acquire();
+            held.V();
+            next.acquire();
+            next.release();
+            mine.release();
+        }
+
+        private Lock mine, next;
+        private Semaphore held;
+    }
+
+    private static boolean chainDonated(KThread[] chain) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean donated = true;
+        for (int i = 1; i < chain.length; i++) {
+            if (ThreadedKernel.scheduler.getEffectivePriority(chain[i]) < priorityMaximum)
+                donated = false;
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return donated;
+    }
+
+    /**
+     * Build a chain of threads, each holding one lock and waiting for the
+     * lock held by the one before it, and check that a high priority waiter
+     * at the end of the chain is donated all the way down.
+     */
+    private static void selfTestDonationChain() {
+        PriorityScheduler scheduler = (PriorityScheduler)ThreadedKernel.scheduler;
+        final int length = 8;
+
+        Lock[] locks = new Lock[length + 1];
+        for (int i = 0; i <= length; i++)
+            locks[i] = new Lock();
+
+        Semaphore held = new Semaphore(0);
+        locks[0].acquire();
+
+        KThread[] chain = new KThread[length + 1];
+        for (int i = 1; i <= length; i++) {
+            chain[i] = new KThread(new ChainTest(locks[i], locks[i - 1], held)).setName("chain" + i);
+            chain[i].fork();
+            held.P();
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+        chain[0] = new KThread(new ChainTest(new Lock(), locks[length], held)).setName("chain top");
+        scheduler.setPriority(chain[0], priorityMaximum);
+        chain[0].fork();
+        Machine.interrupt().restore(intStatus);
+
+        // a lottery may take a few draws to let the chain block
+        long steps = scheduler.donationSteps;
+        for (int i = 0; i < 100 && !chainDonated(chain); i++)
+            KThread.yield();
+
+        intStatus = Machine.interrupt().disable();
+        Lib.assertTrue(chainDonated(chain));
+        System.out.println("*** donation chain of " + length + " took " +
+            (scheduler.donationSteps - steps) + " steps");
+        Machine.interrupt().restore(intStatus);
+
+        locks[0].release();
+        for (int i = 0; i <= length; i++)
+            chain[i].join();
+
+        intStatus = Machine.interrupt().disable();
+        for (int i = 1; i <= length; i++)
+            Lib.assertTrue(scheduler.getEffectivePriority(chain[i]) == priorityDefault);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Let a high priority thread give up waiting for a lock, and check that
+     * its donation to the holder is taken back.
+     */
+    private static void selfTestCancelledDonation() {
+        PriorityScheduler scheduler = (PriorityScheduler)ThreadedKernel.scheduler;
+
+        final Lock lock = new Lock();
+        lock.acquire();
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread waiter = new KThread(new Runnable() {
+            public void run() {
+                Lib.assertTrue(!lock.tryAcquire(2000));
+            }
+        }).setName("timed waiter");
+        scheduler.setPriority(waiter, priorityMaximum);
+        waiter.fork();
+        Machine.interrupt().restore(intStatus);
+
+        // a lottery may take a few draws to let the waiter block
+        boolean donated = false;
+        for (int i = 0; i < 100 && !donated; i++) {
+            KThread.yield();
+
+            intStatus = Machine.interrupt().disable();
+            donated = scheduler.getEffectivePriority(KThread.currentThread()) > priorityDefault;
+            Machine.interrupt().restore(intStatus);
+        }
+        Lib.assertTrue(donated);
+
+        waiter.join();
+
+        intStatus = Machine.interrupt().disable();
+        Lib.assertTrue(scheduler.getEffectivePriority(KThread.currentThread()) == priorityDefault);
+        Machine.interrupt().restore(intStatus);
+
+        lock.release();
+    }
+
     /**
      * Test if this module is working.
      */
@@ -225,6 +348,8 @@ public class PriorityScheduler extends Scheduler {
         System.out.println("*** thread p0 and p1 joined");
         selfTestgetEffectivePriority("main @checkpoint 3");
         ((PriorityScheduler)ThreadedKernel.scheduler).increasePriority();
+        selfTestDonationChain();
+        selfTestCancelledDonation();
         System.out.println("[test:PriorityScheduler] self test passed");
     }
 
@@ -259,7 +384,10 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+     * are kept in one FIFO list per priority, linked through their
+     * <tt>ThreadState</tt>s, with a bitmap of the non-empty lists, so that
+     * adding, removing and reprioritizing a thread all take constant time.
      */
     protected class PriorityQueue extends ThreadQueue {
         PriorityQueue(boolean transferPriority) {
@@ -270,17 +398,10 @@ public class PriorityScheduler extends Scheduler {
             Lib.assertTrue(Machine.interrupt().disabled());
             
             ThreadState state = getThreadState(thread);
-            ThreadPriorityRecord record = new ThreadPriorityRecord(state, state.getEffectivePriority());
-            int currentMax = getMaxPriority();
 
-            queue.add(record);
-            stateToRecord.put(record.state, record);
+            link(state, state.getEffectivePriority());
 
-            if (currentMax < record.getPriority()) {
-                if (acquiredState != null) {
-                    acquiredState.updateEffectivePriority();
-                }
-            }
+            updateDonation();
 
             state.waitForAccess(this);
         }
@@ -291,19 +412,53 @@ public class PriorityScheduler extends Scheduler {
             ThreadState state = getThreadState(thread);
 
             if (acquiredState != null) {
-                acquiredState.release(this);
+                ThreadState previous = acquiredState;
+                acquiredState = null;
+                previous.release(this);
             }
 
-            if (stateToRecord.containsKey(state)) {
-                ThreadPriorityRecord record = stateToRecord.get(state);
-                queue.remove(record);
-                stateToRecord.remove(state);
+            if (state.linkedQueue == this) {
+                unlink(state);
             }
+
+            updateDonation();
             
             this.acquiredState = state;
             state.acquire(this);
         }
 
+        public void acquireShared(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+
+            if (acquiredState == state) {
+                acquiredState = null;
+                state.release(this);
+            }
+
+            if (state.linkedQueue == this)
+                unlink(state);
+
+            updateDonation();
+
+            sharedStates.add(state);
+            state.acquireShared(this);
+        }
+
+        public void release(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+
+            if (acquiredState == state) {
+                acquiredState = null;
+                state.release(this);
+            } else if (sharedStates.remove(state)) {
+                state.release(this);
+            }
+        }
+
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -314,12 +469,27 @@ public class PriorityScheduler extends Scheduler {
             }
 
             if (acquiredState != null) {
-                acquiredState.release(this);
+                ThreadState previous = acquiredState;
                 acquiredState = null;
+                previous.release(this);
             }
             return null;
         }
 
+        public boolean cancel(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (state.linkedQueue != this)
+                return false;
+
+            unlink(state);
+            state.waitingQueue = null;
+
+            updateDonation();
+            return true;
+        }
+
         /**
          * Return the next thread that <tt>nextThread()</tt> would return,
          * without modifying the state of this queue.
@@ -327,46 +497,121 @@ public class PriorityScheduler extends Scheduler {
          * @return the next thread that <tt>nextThread()</tt> would return.
          */
         protected ThreadState pickNextThread() {
-            // ThreadPriorityRecord []tmp = queue.toArray(new ThreadPriorityRecord [0]);
-            // System.out.println(this);
-            // for (ThreadPriorityRecord r : tmp) {
-            //     System.out.println("  gg " + r.getThread() + " " + r.getPriority() + " " + r.getTime());
-            // }
-
-            if (!queue.isEmpty()) {
-                ThreadPriorityRecord record = queue.poll();
-                return record.getState();
-            }
+            if (nonEmpty == 0)
+                return null;
 
-            return null;
+            return heads[getMaxPriority()];
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
+
+            for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+                for (ThreadState state = heads[priority]; state != null; state = state.nextWaiting)
+                    System.out.println("  " + state.getThread() + " priority " + priority);
+            }
         }
 
-        public int getMaxPriority() {
-            boolean intStatus = Machine.interrupt().disable();
+        /**
+         * Change the priority this queue donates to every thread that has
+         * acquired it. This does not update their effective priorities.
+         */
+        protected void setDonation(int priority) {
+            if (acquiredState != null)
+                acquiredState.moveDonation(donation, priority);
+            for (ThreadState sharer : sharedStates)
+                sharer.moveDonation(donation, priority);
+
+            donation = priority;
+        }
+
+        /**
+         * Bring the priority this queue donates up to date with its waiting
+         * threads, and pass any change on from every thread that has
+         * acquired it.
+         */
+        private void updateDonation() {
+            if (!transferPriority || getMaxPriority() == donation)
+                return;
+
+            setDonation(getMaxPriority());
+
+            if (acquiredState != null)
+                acquiredState.updateEffectivePriority();
+            for (ThreadState sharer : sharedStates)
+                sharer.updateEffectivePriority();
+        }
 
-            ThreadPriorityRecord peek = queue.peek();
-            if (peek == null) {
+        /**
+         * Return the highest effective priority of any waiting thread, or 0
+         * if no thread is waiting.
+         */
+        public int getMaxPriority() {
+            if (nonEmpty == 0) {
                 return 0;
             }
 
-            Machine.interrupt().restore(intStatus);
-            return peek.getPriority();
+            return 31 - Integer.numberOfLeadingZeros(nonEmpty);
         }
 
+        /**
+         * Move a waiting thread to the list for its new effective priority.
+         * This does not update the owning thread; see
+         * <tt>propagateDonation()</tt>.
+         */
         public void updateEffectivePriority(ThreadState state) {
-            boolean intStatus = Machine.interrupt().disable();
+            Lib.assertTrue(Machine.interrupt().disabled());
 
-            ThreadPriorityRecord record = stateToRecord.get(state);
-            queue.remove(record);
-            record.setPriority(state.effectivePriority);
-            queue.add(record);
+            // the thread goes to the back of its new priority
+            if (state.linkedQueue == this) {
+                unlink(state);
+                link(state, state.effectivePriority);
+            }
+        }
 
-            Machine.interrupt().restore(intStatus);
+        /**
+         * Append a thread to the list for the specified priority.
+         */
+        private void link(ThreadState state, int priority) {
+            Lib.assertTrue(state.linkedQueue == null);
+
+            state.linkedQueue = this;
+            state.linkedPriority = priority;
+            state.nextWaiting = null;
+            state.prevWaiting = tails[priority];
+
+            if (tails[priority] == null) {
+                heads[priority] = state;
+                nonEmpty |= 1 << priority;
+            } else {
+                tails[priority].nextWaiting = state;
+            }
+            tails[priority] = state;
+        }
+
+        /**
+         * Remove a thread from the list it is in.
+         */
+        private void unlink(ThreadState state) {
+            Lib.assertTrue(state.linkedQueue == this);
+
+            int priority = state.linkedPriority;
+
+            if (state.prevWaiting == null)
+                heads[priority] = state.nextWaiting;
+            else
+                state.prevWaiting.nextWaiting = state.nextWaiting;
+
+            if (state.nextWaiting == null)
+                tails[priority] = state.prevWaiting;
+            else
+                state.nextWaiting.prevWaiting = state.prevWaiting;
+
+            if (heads[priority] == null)
+                nonEmpty &= ~(1 << priority);
+
+            state.linkedQueue = null;
+            state.nextWaiting = state.prevWaiting = null;
         }
 
         /**
@@ -374,75 +619,110 @@ public class PriorityScheduler extends Scheduler {
          * threads to the owning thread.
          */
         public boolean transferPriority;
-        protected java.util.PriorityQueue<ThreadPriorityRecord> queue = 
-            new java.util.PriorityQueue<ThreadPriorityRecord>();
         protected ThreadState acquiredState;
-        protected HashMap<ThreadState, ThreadPriorityRecord> stateToRecord = 
-            new HashMap<ThreadState, ThreadPriorityRecord>();
+        /** The threads given shared access with <tt>acquireShared()</tt>. */
+        protected ArrayList<ThreadState> sharedStates = new ArrayList<ThreadState>();
+        /**
+         * The priority this queue currently donates to
+         * <tt>acquiredState</tt> and each of <tt>sharedStates</tt>, as counted
+         * in their donation histograms.
+         */
+        protected int donation = 0;
+
+        /** The first and last waiting thread of each priority. */
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        /** Bit <i>p</i> is set if some waiting thread has priority <i>p</i>. */
+        private int nonEmpty = 0;
     }
 
-    protected class ThreadPriorityRecord implements Comparable<ThreadPriorityRecord> {
-        public ThreadPriorityRecord(ThreadState state, int priority) {
-            this(state, priority, Machine.timer().getTime());
-        }
+    /**
+     * Bring the effective priority of a thread up to date, and follow the
+     * chain of queues it waits on for as long as the change alters what the
+     * next thread in the chain is donated. Each step costs constant time, so
+     * an update costs time proportional to the part of the chain whose
+     * priority actually changes.
+     *
+     * <p>
+     * A thread whose priority changes twice in one propagation is part of a
+     * waits-for cycle (that is, a deadlock), and the propagation stops there.
+     * If <tt>PriorityScheduler.maxDonationDepth</tt> is positive, it also
+     * stops after that many threads, leaving the rest of the chain stale.
+     *
+     * @param state the thread whose own priority or donations changed.
+     */
+    protected void propagateDonation(ThreadState state) {
+        int steps = 0;
+        long pass = ++donationEvents;
 
-        public ThreadPriorityRecord(ThreadState state, int priority, long time) {
-            this.state = state;
-            this.priority = priority;
-            this.time = time;
-        }
-
-        @Override
-        public int compareTo(ThreadPriorityRecord other) {
-            if (this.getPriority() < other.getPriority()) {
-                return 1;
-            } else if (this.getPriority() == other.getPriority()) {
-                // the threads that was first added into the queue have higher priority.
-                if (this.time > other.time) {
-                    return 1;
-                } else if (this.time == other.time) {
-                    return 0;
-                }
-                return -1;
-            }
-            return -1;
-        }
+        while (true) {
+            steps++;
 
-        @Override
-        public boolean equals(Object other) {
-            if (other == null || !(other instanceof ThreadPriorityRecord)) {
-                return false;
+            int effective = Math.max(state.getPriority(), state.getMaxDonation());
+            if (effective == state.getEffectivePriority())
+                break;
+
+            if (state.donationPass == pass) {
+                Lib.debug(dbgDonation, "donation cycle through " + state.getThread());
+                donationCycles++;
+                break;
+            }
+            if (maxDonationDepth > 0 && steps > maxDonationDepth) {
+                Lib.debug(dbgDonation, "donation depth exceeded at " + state.getThread());
+                break;
             }
-            ThreadPriorityRecord rhs = (ThreadPriorityRecord) other;
-            return getThread().compareTo(rhs.getThread()) == 0;
-        }
 
-        public ThreadState getState() {
-            return state;
-        }
+            state.donationPass = pass;
+            state.setEffectivePriority(effective);
 
-        public KThread getThread() {
-            return state.getThread();
-        }
+            PriorityQueue queue = state.waitingQueue;
+            if (queue == null)
+                break;
 
-        public int getPriority() {
-            return priority;
-        }
+            queue.updateEffectivePriority(state);
 
-        public void setPriority(int priority) {
-            this.priority = priority;
-            this.time = Machine.timer().getTime();
-        }
+            ThreadState holder = queue.acquiredState;
+            int max = queue.getMaxPriority();
+            if (!queue.transferPriority || max == queue.donation)
+                break;
 
-        public long getTime() {
-            return this.time;
+            queue.setDonation(max);
+
+            // a shared queue donates to several threads; follow each of them
+            for (ThreadState sharer : queue.sharedStates)
+                propagateDonation(sharer);
+
+            if (holder == null)
+                break;
+            state = holder;
         }
 
-        private ThreadState state;
-        private int priority;
-        private long time;
+        countDonationSteps(steps);
+    }
+
+    /**
+     * Account for a donation propagation that visited <i>steps</i> threads.
+     */
+    protected void countDonationSteps(int steps) {
+        donationSteps += steps;
+        lastDonationSteps = steps;
+        maxDonationSteps = Math.max(maxDonationSteps, steps);
     }
 
+    /**
+     * The number of donation propagations, the total and largest number of
+     * threads they visited, the number visited by the most recent one, and
+     * the number of waits-for cycles they found.
+     */
+    public long donationEvents = 0, donationSteps = 0;
+    public int maxDonationSteps = 0, lastDonationSteps = 0;
+    public long donationCycles = 0;
+
+    /** The longest chain a donation follows, or 0 for no limit. */
+    protected int maxDonationDepth;
+
+    protected static final char dbgDonation = 'd';
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue it's
@@ -507,20 +787,45 @@ public class PriorityScheduler extends Scheduler {
             this.effectivePriority = effectivePriority;
         }
 
+        /**
+         * Recompute the effective priority of the associated thread from its
+         * own priority and the donations it receives, and pass any change on
+         * along the chain of threads it is waiting for.
+         */
         public void updateEffectivePriority() {
-            int max = getPriority();
-            for (PriorityQueue q : acquiredQueues) {
-                if (q.getMaxPriority() > max) {
-                    max = q.getMaxPriority();
-                }
-            }
+            propagateDonation(this);
+        }
 
-            if (getEffectivePriority() != max) {
-                setEffectivePriority(max);
-                if (waitingQueue != null) {
-                    waitingQueue.updateEffectivePriority(this);
-                }
-            }
+        /**
+         * Return the highest priority donated to the associated thread by
+         * the queues it has acquired, or 0 if there is none.
+         */
+        protected int getMaxDonation() {
+            if (donatedLevels == 0)
+                return 0;
+
+            return 31 - Integer.numberOfLeadingZeros(donatedLevels);
+        }
+
+        /**
+         * Replace one donation received by the associated thread with
+         * another. This does not update the effective priority.
+         */
+        protected void moveDonation(int from, int to) {
+            removeDonation(from);
+            addDonation(to);
+        }
+
+        private void addDonation(int priority) {
+            if (donations[priority]++ == 0)
+                donatedLevels |= 1 << priority;
+        }
+
+        private void removeDonation(int priority) {
+            Lib.assertTrue(donations[priority] > 0);
+
+            if (--donations[priority] == 0)
+                donatedLevels &= ~(1 << priority);
         }
 
         /**
@@ -551,17 +856,39 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            if (waitingQueue != null) {
-                Lib.assertTrue(waitingQueue == waitQueue);
+            // a lock may hand its queue to a holder that is waiting on
+            // another queue, the first time a thread has to wait for it
+            if (waitingQueue == waitQueue)
                 waitingQueue = null;
-            }
             
             acquiredQueues.add(waitQueue);
+            if (waitQueue.transferPriority) {
+                waitQueue.donation = waitQueue.getMaxPriority();
+                addDonation(waitQueue.donation);
+            }
+            updateEffectivePriority();
+        }
+
+        /**
+         * Called when the associated thread has been given shared access to
+         * whatever is guarded by <tt>waitQueue</tt>, by
+         * <tt>acquireShared(thread)</tt>.
+         *
+         * @see nachos.threads.ThreadQueue#acquireShared
+         */
+        public void acquireShared(PriorityQueue waitQueue) {
+            if (waitingQueue == waitQueue)
+                waitingQueue = null;
+
+            acquiredQueues.add(waitQueue);
+            if (waitQueue.transferPriority)
+                addDonation(waitQueue.donation);
             updateEffectivePriority();
         }
 
         public void release(PriorityQueue waitQueue) {
-            acquiredQueues.remove(waitQueue);
+            if (acquiredQueues.remove(waitQueue) && waitQueue.transferPriority)
+                removeDonation(waitQueue.donation);
             updateEffectivePriority();
         }
 
@@ -576,5 +903,20 @@ public class PriorityScheduler extends Scheduler {
 
         protected HashSet<PriorityQueue> acquiredQueues = new HashSet<PriorityQueue>();
         protected PriorityQueue waitingQueue;
+
+        /**
+         * The number of acquired queues donating each priority, and a bitmap
+         * of the priorities with a non-zero count.
+         */
+        private int[] donations = new int[priorityMaximum + 1];
+        private int donatedLevels = 0;
+        /** The last propagation that changed this thread's priority. */
+        private long donationPass = 0;
+
+        /** The queue whose lists this thread is linked into, if any. */
+        protected PriorityQueue linkedQueue;
+        /** The priority of the list this thread is linked into. */
+        protected int linkedPriority;
+        protected ThreadState prevWaiting, nextWaiting;
     }
 }
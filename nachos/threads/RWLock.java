@@ -0,0 +1,321 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A reader-writer lock. Any number of threads may hold it for reading at the
+ * same time, but a thread that holds it for writing holds it alone.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no thread holds the lock for writing,
+ * then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock at all,
+ * then hold it for writing.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock,
+ * waking up waiting threads if possible.
+ * </ul>
+ *
+ * <p>
+ * In either mode, a thread that asks to read while a writer is waiting waits
+ * behind it, so writers are never starved. When a writer releases the lock,
+ * a writer-preference lock hands it to the next waiting writer, if there is
+ * one, and otherwise to all waiting readers. A fair lock hands it to all
+ * waiting readers, if there are any, so that readers are not starved either.
+ *
+ * <p>
+ * Waiting writers donate priority to the writer or to every reader that holds
+ * the lock, and waiting readers donate priority to the holders as well.
+ */
+public class RWLock {
+    /**
+     * Allocate a new writer-preference reader-writer lock. The lock will
+     * initially be free.
+     */
+    public RWLock() {
+        this(false);
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param fair
+     *            <tt>true</tt> if waiting readers should get the lock ahead
+     *            of waiting writers when a writer releases it.
+     */
+    public RWLock(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Atomically wait until no thread holds this lock for writing, and hold it
+     * for reading. The current thread must not already hold this lock.
+     */
+    public void acquireRead() {
+        Lib.assertTrue(!isWriteHeldByCurrentThread() && !isReadHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || writersWaiting > 0) {
+            readersWaiting++;
+            readQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            share(thread);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for reading. The current thread must hold
+     * it for reading.
+     */
+    public void releaseRead() {
+        Lib.assertTrue(isReadHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        readers.remove(thread);
+        readQueue.release(thread);
+        writeQueue.release(thread);
+
+        if (readers.isEmpty() && writersWaiting > 0)
+            handToWriter();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until no thread holds this lock, and hold it for
+     * writing. The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+        Lib.assertTrue(!isWriteHeldByCurrentThread() && !isReadHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || !readers.isEmpty()) {
+            writersWaiting++;
+            writeQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            writer = thread;
+            writeQueue.acquire(thread);
+            readQueue.acquireShared(thread);
+        }
+
+        Lib.assertTrue(writer == thread);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock for writing. The current thread must hold
+     * it for writing.
+     */
+    public void releaseWrite() {
+        Lib.assertTrue(isWriteHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        writeQueue.release(writer);
+        readQueue.release(writer);
+        writer = null;
+
+        if (readersWaiting > 0 && (fair || writersWaiting == 0)) {
+            while (readersWaiting > 0) {
+                readersWaiting--;
+
+                KThread thread = readQueue.nextThread();
+                share(thread);
+                thread.ready();
+            }
+        } else if (writersWaiting > 0) {
+            handToWriter();
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+        return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+        return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Make a thread one of the readers holding this lock.
+     */
+    private void share(KThread thread) {
+        readers.add(thread);
+        readQueue.acquireShared(thread);
+        writeQueue.acquireShared(thread);
+    }
+
+    /**
+     * Hand this lock to the next waiting writer, which owns the write queue
+     * once <tt>nextThread()</tt> returns it.
+     */
+    private void handToWriter() {
+        writersWaiting--;
+
+        writer = writeQueue.nextThread();
+        readQueue.acquireShared(writer);
+        writer.ready();
+    }
+
+    private static class RWTest implements Runnable {
+        RWTest(RWLock lock, boolean write, char[] order, String name) {
+            this.lock = lock;
+            this.write = write;
+            this.order = order;
+            this.name = name;
+        }
+
+        public void run() {
+            if (write)
+                lock.acquireWrite();
+            else
+                lock.acquireRead();
+
+            order[order[0]++] = name.charAt(0);
+
+            if (write)
+                lock.releaseWrite();
+            else
+                lock.releaseRead();
+        }
+
+        private RWLock lock;
+        private boolean write;
+        private char[] order;
+        private String name;
+    }
+
+    /**
+     * Whether the scheduler donates priorities that <tt>selfTest()</tt> can
+     * check.
+     */
+    private static boolean donates() {
+        return ThreadedKernel.scheduler instanceof PriorityScheduler &&
+            !(ThreadedKernel.scheduler instanceof LotteryScheduler);
+    }
+
+    /**
+     * Fork a thread that reads or writes under <i>lock</i>, with the
+     * specified priority if the scheduler donates priorities.
+     */
+    private static KThread fork(RWLock lock, boolean write, char[] order,
+                                String name, int priority) {
+        KThread thread = new KThread(new RWTest(lock, write, order, name)).setName(name);
+
+        if (donates()) {
+            boolean intStatus = Machine.interrupt().disable();
+            ThreadedKernel.scheduler.setPriority(thread, priority);
+            Machine.interrupt().restore(intStatus);
+        }
+
+        thread.fork();
+        return thread;
+    }
+
+    /**
+     * Hold <i>lock</i> for writing while a reader and then a writer line up
+     * behind it, and return the order in which they got it.
+     */
+    private static String handOff(boolean fair) {
+        RWLock lock = new RWLock(fair);
+        char[] order = new char[] { 1, 0, 0 };
+
+        lock.acquireWrite();
+        KThread reader = fork(lock, false, order, "r", 1);
+        while (lock.readersWaiting < 1)
+            KThread.yield();
+        KThread writer = fork(lock, true, order, "w", 1);
+        while (lock.writersWaiting < 1)
+            KThread.yield();
+        lock.releaseWrite();
+
+        reader.join();
+        writer.join();
+
+        return new String(order, 1, 2);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+        System.out.println("[test:RWLock] self test started");
+
+        RWLock lock = new RWLock();
+        char[] order = new char[] { 1, 0, 0, 0 };
+
+        // a second reader gets in while the current thread reads
+        lock.acquireRead();
+        Lib.assertTrue(lock.isReadHeldByCurrentThread());
+        KThread reader = fork(lock, false, order, "a", 1);
+        reader.join();
+        Lib.assertTrue(order[0] == 2);
+
+        // a writer waits for the reader, which it donates its priority to,
+        // and a later reader waits behind the writer
+        KThread writer = fork(lock, true, order, "w", 7);
+        while (lock.writersWaiting < 1)
+            KThread.yield();
+
+        boolean intStatus = Machine.interrupt().disable();
+        int effective = ThreadedKernel.scheduler.getEffectivePriority();
+        Machine.interrupt().restore(intStatus);
+        if (donates())
+            Lib.assertTrue(effective == 7);
+
+        reader = fork(lock, false, order, "b", 7);
+        while (lock.readersWaiting < 1)
+            KThread.yield();
+        Lib.assertTrue(order[0] == 2);
+
+        lock.releaseRead();
+        Lib.assertTrue(!lock.isReadHeldByCurrentThread());
+        writer.join();
+        reader.join();
+        Lib.assertTrue(new String(order, 1, 3).equals("awb"));
+
+        // when a writer releases, a writer-preference lock prefers the waiting
+        // writer and a fair lock the waiting reader
+        Lib.assertTrue(handOff(false).equals("wr"));
+        Lib.assertTrue(handOff(true).equals("rw"));
+
+        System.out.println("[test:RWLock] self test passed");
+    }
+
+    private boolean fair;
+
+    /** The thread holding this lock for writing, if any. */
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private Set<KThread> readers = new HashSet<KThread>();
+    private int readersWaiting = 0, writersWaiting = 0;
+
+    /** Waiting readers, and waiting writers. Both are owned by the holders. */
+    private ThreadQueue readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -2,15 +2,17 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
  * with linked lists. When a thread begins waiting for access, it is appended to
  * the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
+ *
+ * <p>
+ * The links are kept in each thread's scheduling state rather than in
+ * separate list nodes. A thread waits on at most one queue at a time, so this
+ * needs no allocation, and a thread can be cancelled in constant time.
  */
 public class RoundRobinScheduler extends Scheduler {
     /**
@@ -30,6 +32,20 @@ public class RoundRobinScheduler extends Scheduler {
         return new FifoQueue();
     }
 
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread
+     *            the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
     private class FifoQueue extends ThreadQueue {
         /**
          * Add a thread to the end of the wait queue.
@@ -40,7 +56,17 @@ public class RoundRobinScheduler extends Scheduler {
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            waitQueue.add(thread);
+            ThreadState state = getThreadState(thread);
+            Lib.assertTrue(state.queue == null);
+
+            state.queue = this;
+            state.prev = tail;
+            state.next = null;
+            if (tail == null)
+                head = state;
+            else
+                tail.next = state;
+            tail = state;
         }
 
         /**
@@ -52,10 +78,26 @@ public class RoundRobinScheduler extends Scheduler {
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            if (waitQueue.isEmpty())
+            if (head == null)
                 return null;
 
-            return (KThread) waitQueue.removeFirst();
+            ThreadState state = head;
+            unlink(state);
+            return state.thread;
+        }
+
+        /**
+         * Remove a thread from wherever it is in the queue.
+         */
+        public boolean cancel(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState state = getThreadState(thread);
+            if (state.queue != this)
+                return false;
+
+            unlink(state);
+            return true;
         }
 
         /**
@@ -66,7 +108,7 @@ public class RoundRobinScheduler extends Scheduler {
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            Lib.assertTrue(waitQueue.isEmpty());
+            Lib.assertTrue(head == null);
         }
 
         /**
@@ -75,10 +117,46 @@ public class RoundRobinScheduler extends Scheduler {
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            for (Iterator i = waitQueue.iterator(); i.hasNext();)
-                System.out.print((KThread) i.next() + " ");
+            for (ThreadState state = head; state != null; state = state.next)
+                System.out.print(state.thread + " ");
+        }
+
+        /**
+         * Take a thread off this queue.
+         */
+        private void unlink(ThreadState state) {
+            if (state.prev == null)
+                head = state.next;
+            else
+                state.prev.next = state.next;
+
+            if (state.next == null)
+                tail = state.prev;
+            else
+                state.next.prev = state.prev;
+
+            state.queue = null;
+            state.prev = state.next = null;
+        }
+
+        private ThreadState head = null;
+        private ThreadState tail = null;
+    }
+
+    /**
+     * The scheduling state of a thread: the queue it is waiting on, if any,
+     * and its neighbours there.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    private static class ThreadState {
+        ThreadState(KThread thread) {
+            this.thread = thread;
         }
 
-        private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+        private KThread thread;
+        private FifoQueue queue = null;
+        private ThreadState prev = null;
+        private ThreadState next = null;
     }
 }
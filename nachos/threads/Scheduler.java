@@ -157,4 +157,60 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Decide whether to admit a thread to this scheduler's real-time class,
+     * with the parameters given to <tt>KThread.setRealTime()</tt>. Must be
+     * called with interrupts disabled.
+     *
+     * @return <tt>true</tt> if the thread is admitted. By default there is no
+     *         real-time class, and no thread is.
+     *
+     * @see nachos.threads.KThread#setRealTime
+     */
+    public boolean admitRealTime(KThread thread, long period, long deadline,
+                                 long budget) {
+        return false;
+    }
+
+    /**
+     * Release the share of the processor reserved for an admitted real-time
+     * thread, which is finishing. Must be called with interrupts disabled.
+     *
+     * @param thread the finishing thread.
+     */
+    public void dismissRealTime(KThread thread) {
+    }
+
+    /**
+     * Tell this scheduler which of its queues is the ready queue. Called once,
+     * by the first <tt>KThread</tt>, when it creates the ready queue. The
+     * default implementation does nothing.
+     *
+     * @param readyQueue a queue returned by <tt>newThreadQueue()</tt>.
+     */
+    public void setReadyQueue(ThreadQueue readyQueue) {
+    }
+
+    /**
+     * Called with interrupts disabled when a blocked thread is woken, just
+     * before it is put on the ready queue. The default implementation does
+     * nothing.
+     *
+     * @param thread the thread being woken.
+     */
+    public void threadWoken(KThread thread) {
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * before it considers preempting the current thread. A scheduler that
+     * keeps its own time slices can charge the current thread here.
+     *
+     * @return <tt>true</tt> if the current thread should yield. By default it
+     *         always should.
+     */
+    public boolean timerTick() {
+        return true;
+    }
 }
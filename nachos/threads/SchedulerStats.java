@@ -0,0 +1,416 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how the scheduler treats threads, whatever the scheduler is.
+ *
+ * <p>
+ * A <tt>SchedulerStats</tt> wraps the ready queue, to see when each thread
+ * becomes ready and when it is dequeued, and is told of every dispatch by
+ * <tt>KThread.runNextThread()</tt>. From these it records, for each thread, a
+ * histogram of the ticks from becoming ready to being dequeued, the number of
+ * times it was switched to, and its time on the CPU; and, overall, the length
+ * of the ready queue over time and the number of context switches. The
+ * results are printed after the machine statistics when Nachos halts.
+ *
+ * <p>
+ * Only the <tt>SchedulerStats.maxThreads</tt> threads with the most CPU time
+ * are printed on their own. A finished thread keeps its record only while it
+ * is among them; otherwise its counts are folded into a single line for the
+ * other threads, so the records do not grow with the number of threads ever
+ * created.
+ *
+ * <p>
+ * It is enabled by <tt>SchedulerStats.enabled</tt>. If
+ * <tt>SchedulerStats.trace</tt> is also set, every event is printed as a CSV
+ * row of time, event, thread, ready queue length and latency, each starting
+ * with <tt>trace,</tt> so that it can be picked out of the rest of the output.
+ * Rows are printed in batches, and the file system is not used, because
+ * writing to a file would block the thread in the middle of a dispatch.
+ */
+public class SchedulerStats {
+    /**
+     * Allocate a new scheduler statistics collector, and arrange for its
+     * results to be printed when Nachos halts.
+     */
+    public SchedulerStats() {
+        trace = Config.getBoolean("SchedulerStats.trace", false);
+        maxThreads = Math.max(0, Config.getInteger("SchedulerStats.maxThreads", 10));
+        if (trace)
+            traceLine("time,event,thread,queue,latency");
+
+        Machine.addStatsReport(new Runnable() {
+            public void run() {
+                print();
+            }
+        });
+    }
+
+    /**
+     * Return a thread queue that behaves exactly like <i>readyQueue</i>, and
+     * records every thread that goes through it.
+     *
+     * @param readyQueue the ready queue to measure.
+     * @return the wrapped ready queue.
+     */
+    public ThreadQueue instrument(final ThreadQueue readyQueue) {
+        return new ThreadQueue() {
+            public void waitForAccess(KThread thread) {
+                readyQueue.waitForAccess(thread);
+                ready(thread);
+            }
+
+            public KThread nextThread() {
+                KThread thread = readyQueue.nextThread();
+                if (thread != null)
+                    dequeued(thread);
+                return thread;
+            }
+
+            public boolean cancel(KThread thread) {
+                if (!readyQueue.cancel(thread))
+                    return false;
+
+                setQueueLength(Machine.timer().getTime(), queueLength - 1);
+                return true;
+            }
+
+            public void acquire(KThread thread) {
+                readyQueue.acquire(thread);
+            }
+
+            public void print() {
+                readyQueue.print();
+            }
+        };
+    }
+
+    private void ready(KThread thread) {
+        long now = Machine.timer().getTime();
+
+        ThreadRecord record = getRecord(thread);
+        record.readyTime = now;
+
+        setQueueLength(now, queueLength + 1);
+        traceEvent(now, "ready", thread, -1);
+    }
+
+    private void dequeued(KThread thread) {
+        long now = Machine.timer().getTime();
+
+        ThreadRecord record = getRecord(thread);
+        long latency = now - record.readyTime;
+        record.latency.record(latency);
+        latencies.record(latency);
+
+        setQueueLength(now, queueLength - 1);
+        traceEvent(now, "dequeue", thread, latency);
+    }
+
+    /**
+     * Called when the CPU is about to be dispatched from the current thread
+     * to <i>next</i>, which may be the same thread.
+     *
+     * @param current the thread giving up the CPU.
+     * @param next the thread that will run.
+     */
+    public void dispatch(KThread current, KThread next) {
+        long now = Machine.timer().getTime();
+
+        ThreadRecord from = getRecord(current);
+        from.cpuTicks += now - from.dispatchTime;
+        from.dispatchTime = now;
+        if (from.finished)
+            retire(current.getID(), from);
+
+        if (next != current) {
+            contextSwitches++;
+
+            ThreadRecord to = getRecord(next);
+            to.dispatches++;
+            to.dispatchTime = now;
+
+            traceEvent(now, "switch", next, -1);
+        }
+    }
+
+    /**
+     * Called when <i>thread</i> finishes. Its record is retired once it has
+     * been switched away from for the last time.
+     *
+     * @param thread the thread that is finishing.
+     */
+    public void finish(KThread thread) {
+        getRecord(thread).finished = true;
+    }
+
+    private ThreadRecord getRecord(KThread thread) {
+        ThreadRecord record = threads.get(thread.getID());
+        if (record == null) {
+            record = new ThreadRecord(thread.toString(), Machine.timer().getTime());
+            threads.put(thread.getID(), record);
+        }
+        return record;
+    }
+
+    /**
+     * Stop tracking a finished thread. Keep its record if it is among the
+     * <tt>maxThreads</tt> finished threads with the most CPU time, and fold it,
+     * or the record it displaces, into the other threads otherwise.
+     */
+    private void retire(int id, ThreadRecord record) {
+        threads.remove(id);
+
+        if (finished.size() < maxThreads) {
+            finished.add(record);
+            return;
+        }
+
+        int least = -1;
+        for (int i = 0; i < finished.size(); i++) {
+            if (least < 0 || finished.get(i).cpuTicks < finished.get(least).cpuTicks)
+                least = i;
+        }
+
+        if (least >= 0 && finished.get(least).cpuTicks < record.cpuTicks)
+            fold(finished.set(least, record));
+        else
+            fold(record);
+    }
+
+    private void fold(ThreadRecord record) {
+        otherThreads++;
+        otherDispatches += record.dispatches;
+        otherCpuTicks += record.cpuTicks;
+    }
+
+    private void setQueueLength(long now, int length) {
+        queueLengthArea += (long) queueLength * (now - queueLengthTime);
+        queueLengthTime = now;
+        queueLength = length;
+        maxQueueLength = Math.max(maxQueueLength, length);
+    }
+
+    private void traceEvent(long now, String event, KThread thread, long latency) {
+        if (trace)
+            traceLine(now + "," + event + "," + thread + "," + queueLength + "," +
+                      (latency < 0 ? "" : Long.toString(latency)));
+    }
+
+    private void traceLine(String line) {
+        traceBuffer.append("trace,").append(line).append('\n');
+        if (traceBuffer.length() >= traceFlushSize)
+            flushTrace();
+    }
+
+    private void flushTrace() {
+        System.out.print(traceBuffer);
+        traceBuffer.setLength(0);
+    }
+
+    /**
+     * Print the results.
+     */
+    public void print() {
+        if (trace)
+            flushTrace();
+
+        long now = Machine.timer().getTime();
+        setQueueLength(now, queueLength);
+
+        System.out.println("Scheduler: context switches " + contextSwitches +
+            ", ready queue mean " + format(now == 0 ? 0 : (double) queueLengthArea / now) +
+            ", max " + maxQueueLength);
+
+        List<ThreadRecord> records = new ArrayList<ThreadRecord>(threads.values());
+        records.addAll(finished);
+        Collections.sort(records, new Comparator<ThreadRecord>() {
+            public int compare(ThreadRecord a, ThreadRecord b) {
+                return Long.compare(b.cpuTicks, a.cpuTicks);
+            }
+        });
+
+        long others = otherThreads, dispatches = otherDispatches, cpuTicks = otherCpuTicks;
+        for (int i = maxThreads; i < records.size(); i++) {
+            others++;
+            dispatches += records.get(i).dispatches;
+            cpuTicks += records.get(i).cpuTicks;
+        }
+
+        for (ThreadRecord record : records.subList(0, Math.min(maxThreads, records.size()))) {
+            Histogram latency = record.latency;
+            System.out.println("  " + record.name + ": dispatched " + record.dispatches +
+                ", cpu " + record.cpuTicks + " ticks, latency mean " + format(latency.getMean()) +
+                " p50 " + latency.getValueAtPercentile(50) +
+                " p99 " + latency.getValueAtPercentile(99) +
+                " max " + latency.getMax());
+        }
+        if (others > 0)
+            System.out.println("  " + others + " other threads: dispatched " + dispatches +
+                ", cpu " + cpuTicks + " ticks");
+
+        System.out.println("Ready latency (ticks), all threads:");
+        latencies.print();
+    }
+
+    private static String format(double value) {
+        return Long.toString(Math.round(value * 100) / 100) + "." +
+            Long.toString(100 + Math.round(value * 100) % 100).substring(1);
+    }
+
+    /**
+     * A histogram of non-negative values with a fixed relative precision, in
+     * the manner of HdrHistogram. Values below 2<sup><i>b</i></sup> each have
+     * their own bucket, and every power of two above that is split into
+     * 2<sup><i>b</i>-1</sup> equal buckets, so a value is known to within
+     * 1 part in 2<sup><i>b</i>-1</sup>.
+     */
+    static class Histogram {
+        /**
+         * Count one occurrence of a value.
+         *
+         * @param value the value, which must not be negative.
+         */
+        void record(long value) {
+            Lib.assertTrue(value >= 0);
+
+            int index = indexOf(value);
+            if (index >= counts.length) {
+                long[] newCounts = new long[index + subBuckets];
+                System.arraycopy(counts, 0, newCounts, 0, counts.length);
+                counts = newCounts;
+            }
+
+            counts[index]++;
+            total++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        long getCount() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        double getMean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        /**
+         * Return the highest value, to within the precision of this
+         * histogram, of the lowest <i>percentile</i> percent of the values.
+         */
+        long getValueAtPercentile(double percentile) {
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+
+            long seen = 0;
+            for (int index = 0; index < counts.length; index++) {
+                seen += counts[index];
+                if (seen >= target)
+                    return Math.min(max, highestValueIn(index));
+            }
+
+            return max;
+        }
+
+        /**
+         * Print the value at a series of percentiles, each halving the
+         * distance to 100 percent, like an HdrHistogram percentile
+         * distribution.
+         */
+        void print() {
+            System.out.println("       Value   Percentile   TotalCount");
+
+            if (total == 0)
+                return;
+
+            double percentile = 0;
+            for (int step = 0; step < 12; step++) {
+                percentile = 100 - 100 / Math.pow(2, step);
+                printRow(getValueAtPercentile(percentile), percentile);
+            }
+            printRow(max, 100);
+        }
+
+        private void printRow(long value, double percentile) {
+            long count = 0;
+            for (int index = 0; index < counts.length && lowestValueIn(index) <= value; index++)
+                count += counts[index];
+
+            String row = String.format("%12d %12.6f %12d", value, percentile / 100, count);
+            System.out.println(row);
+        }
+
+        private static int indexOf(long value) {
+            if (value < subBuckets)
+                return (int) value;
+
+            // the power of two at or below value, relative to subBuckets
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (subBits - 1);
+            return (int) (shift * (subBuckets / 2) + (value >> shift));
+        }
+
+        private static long lowestValueIn(int index) {
+            if (index < subBuckets)
+                return index;
+
+            int shift = (index - subBuckets / 2) / (subBuckets / 2);
+            long sub = index - shift * (subBuckets / 2);
+            return sub << shift;
+        }
+
+        private static long highestValueIn(int index) {
+            return lowestValueIn(index + 1) - 1;
+        }
+
+        private static final int subBits = 5;
+        private static final int subBuckets = 1 << subBits;
+
+        private long[] counts = new long[subBuckets * 4];
+        private long total = 0, sum = 0, max = 0;
+    }
+
+    private static class ThreadRecord {
+        ThreadRecord(String name, long now) {
+            this.name = name;
+            this.dispatchTime = now;
+        }
+
+        String name;
+        long readyTime;
+        long dispatchTime;
+        long dispatches = 0;
+        long cpuTicks = 0;
+        boolean finished = false;
+        Histogram latency = new Histogram();
+    }
+
+    /** The records of the threads that have not finished, by thread ID. */
+    private Map<Integer, ThreadRecord> threads = new LinkedHashMap<Integer, ThreadRecord>();
+    /** The finished threads with the most CPU time, at most <tt>maxThreads</tt>. */
+    private List<ThreadRecord> finished = new ArrayList<ThreadRecord>();
+    /** The number of threads printed on their own. */
+    private int maxThreads;
+    /** The counts of the finished threads whose records were dropped. */
+    private long otherThreads = 0, otherDispatches = 0, otherCpuTicks = 0;
+    private Histogram latencies = new Histogram();
+    private long contextSwitches = 0;
+
+    private int queueLength = 0, maxQueueLength = 0;
+    private long queueLengthTime = 0, queueLengthArea = 0;
+
+    private boolean trace;
+    private StringBuilder traceBuffer = new StringBuilder();
+    private static final int traceFlushSize = 1 << 16;
+}
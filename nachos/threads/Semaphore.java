@@ -20,6 +20,10 @@ import nachos.machine.*;
  * the time you get the value, a context switch might have occurred, and some
  * other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the true
  * value might now be different.
+ *
+ * <p>
+ * <tt>P()</tt> on a non-zero semaphore, and <tt>V()</tt> on one no thread is
+ * waiting for, do not touch the interrupt status, as in <tt>Lock</tt>.
  */
 public class Semaphore {
     /**
@@ -36,16 +40,47 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+        if (value > 0) {
+            value--;
+            return;
+        }
+
         boolean intStatus = Machine.interrupt().disable();
 
-        if (value == 0) {
-            waitQueue.waitForAccess(KThread.currentThread());
-            KThread.sleep();
-        } else {
+        waiting++;
+        waitQueue.waitForAccess(KThread.currentThread());
+        KThread.sleep();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait at most <i>ticks</i> ticks for this semaphore to become
+     * non-zero, and decrement it if it does.
+     *
+     * @param ticks
+     *            the most ticks to wait.
+     * @return <tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP(long ticks) {
+        if (value > 0) {
             value--;
+            return true;
         }
+        if (ticks <= 0)
+            return false;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        waiting++;
+        waitQueue.waitForAccess(KThread.currentThread());
+        boolean timedOut = ThreadedKernel.alarm.sleepFor(ticks, waitQueue);
+        if (timedOut)
+            waiting--;
 
         Machine.interrupt().restore(intStatus);
+
+        return !timedOut;
     }
 
     /**
@@ -53,10 +88,16 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+        if (waiting == 0) {
+            value++;
+            return;
+        }
+
         boolean intStatus = Machine.interrupt().disable();
 
         KThread thread = waitQueue.nextThread();
         if (thread != null) {
+            waiting--;
             thread.ready();
         } else {
             value++;
@@ -95,8 +136,21 @@ public class Semaphore {
             ping.V();
             pong.P();
         }
+
+        // a timed P gives up when no V comes, and takes one that does
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(!ping.tryP(1000));
+        Lib.assertTrue(Machine.timer().getTime() >= start + 1000);
+
+        new KThread(new PingTest(ping, pong)).setName("ping").fork();
+        for (int i = 0; i < 10; i++) {
+            ping.V();
+            Lib.assertTrue(pong.tryP(100000));
+        }
     }
 
     private int value;
+    /** The number of threads in <tt>waitQueue</tt>. */
+    private int waiting = 0;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,301 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives each thread a share of its queues in proportion to
+ * its tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler gives each waiting thread a <i>pass</i>, and always
+ * dequeues the thread with the lowest pass. A thread with <i>n</i> tickets
+ * has a <i>stride</i> inversely proportional to <i>n</i>+1, and joins a queue
+ * one stride past the pass of the last thread dequeued from it. A thread that
+ * keeps returning to the same queue is therefore dequeued at a rate
+ * proportional to its tickets, and, unlike a lottery, the error in its share
+ * never grows beyond a constant.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins exactly as they are by a
+ * <tt>LotteryScheduler</tt>.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority
+     *            <tt>true</tt> if this queue should transfer tickets from
+     *            waiting threads to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new StrideThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the stride of a thread with the specified number of tickets.
+     */
+    protected static long stride(long tickets) {
+        return Math.max(1, strideScale / (tickets + 1));
+    }
+
+    /**
+     * The stride of a thread with no tickets. Strides stay at or below this,
+     * so that rescaling a pass cannot overflow.
+     */
+    public static final long strideScale = 1L << 30;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * pass. Waiting threads are kept in a binary heap, ordered by pass and
+     * then by arrival.
+     */
+    protected class StrideQueue extends LotteryQueue {
+        StrideQueue(boolean transferPriority) {
+            super(transferPriority);
+        }
+
+        protected ThreadState pickNextThread() {
+            if (heapSize == 0)
+                return null;
+
+            return heap[1];
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 1; i <= heapSize; i++)
+                System.out.println("  " + heap[i].getThread() + " tickets " +
+                    heap[i].slotTickets + " pass " + heap[i].pass);
+        }
+
+        public long getNaiveSumPriority() {
+            long sum = 0;
+            for (int i = 1; i <= heapSize; i++)
+                sum += heap[i].slotTickets;
+            return sum;
+        }
+
+        /**
+         * Rescale what is left of a waiting thread's stride to its new
+         * tickets. This does not update the owning thread; see
+         * <tt>propagateTickets()</tt>.
+         */
+        public void updateEffectivePriority(ThreadState state) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            StrideThreadState strideState = (StrideThreadState) state;
+            if (strideState.linkedQueue == this &&
+                strideState.slotTickets != strideState.tickets) {
+                long remain = strideState.pass - virtualTime;
+                remain = remain * stride(strideState.tickets) / stride(strideState.slotTickets);
+
+                sumTickets += strideState.tickets - strideState.slotTickets;
+                strideState.slotTickets = strideState.tickets;
+                strideState.pass = virtualTime + remain;
+
+                siftDown(siftUp(strideState.slot));
+            }
+        }
+
+        protected void insert(LotteryThreadState state) {
+            Lib.assertTrue(state.linkedQueue == null);
+
+            StrideThreadState strideState = (StrideThreadState) state;
+
+            strideState.linkedQueue = this;
+            strideState.slotTickets = strideState.tickets;
+            strideState.pass = virtualTime + stride(strideState.slotTickets);
+            strideState.arrival = arrivals++;
+            sumTickets += strideState.slotTickets;
+
+            if (heapSize + 1 == heap.length) {
+                StrideThreadState[] newHeap = new StrideThreadState[heap.length * 2];
+                System.arraycopy(heap, 0, newHeap, 0, heap.length);
+                heap = newHeap;
+            }
+
+            heap[++heapSize] = strideState;
+            strideState.slot = heapSize;
+            siftUp(heapSize);
+        }
+
+        protected void remove(LotteryThreadState state) {
+            Lib.assertTrue(state.linkedQueue == this);
+
+            StrideThreadState strideState = (StrideThreadState) state;
+            int slot = strideState.slot;
+
+            // dequeueing the lowest pass advances this queue's clock
+            if (slot == 1)
+                virtualTime = Math.max(virtualTime, strideState.pass);
+
+            sumTickets -= strideState.slotTickets;
+            strideState.linkedQueue = null;
+
+            StrideThreadState last = heap[heapSize];
+            heap[heapSize--] = null;
+
+            if (last != strideState) {
+                heap[slot] = last;
+                last.slot = slot;
+                siftDown(siftUp(slot));
+            }
+        }
+
+        private boolean before(StrideThreadState a, StrideThreadState b) {
+            if (a.pass != b.pass)
+                return a.pass < b.pass;
+
+            return a.arrival < b.arrival;
+        }
+
+        private int siftUp(int slot) {
+            StrideThreadState state = heap[slot];
+
+            while (slot > 1 && before(state, heap[slot / 2])) {
+                heap[slot] = heap[slot / 2];
+                heap[slot].slot = slot;
+                slot /= 2;
+            }
+
+            heap[slot] = state;
+            state.slot = slot;
+            return slot;
+        }
+
+        private int siftDown(int slot) {
+            StrideThreadState state = heap[slot];
+
+            while (slot * 2 <= heapSize) {
+                int child = slot * 2;
+                if (child < heapSize && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], state))
+                    break;
+
+                heap[slot] = heap[child];
+                heap[slot].slot = slot;
+                slot = child;
+            }
+
+            heap[slot] = state;
+            state.slot = slot;
+            return slot;
+        }
+
+        /** The pass of the last thread dequeued. */
+        private long virtualTime = 0;
+        /** The number of threads that have ever joined this queue. */
+        private long arrivals = 0;
+
+        /** The waiting threads, as a heap indexed from 1. */
+        private StrideThreadState[] heap = new StrideThreadState[8];
+        private int heapSize = 0;
+    }
+
+    protected class StrideThreadState extends LotteryThreadState {
+        public StrideThreadState(KThread thread) {
+            super(thread);
+        }
+
+        /** The pass of the associated thread in <tt>linkedQueue</tt>. */
+        protected long pass;
+        /** When the associated thread joined <tt>linkedQueue</tt>. */
+        protected long arrival;
+    }
+
+    /**
+     * Hand out <i>quanta</i> turns of a queue to a fixed set of threads with
+     * different tickets, putting each thread back as soon as it is dequeued,
+     * and return the largest difference, at any point, between the turns a
+     * thread got and its exact share.
+     */
+    private static double measureFairness(PriorityScheduler scheduler,
+                                          int[] tickets, int quanta) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+        KThread[] threads = new KThread[tickets.length];
+        long totalChances = 0;
+
+        for (int i = 0; i < tickets.length; i++) {
+            threads[i] = new KThread().setName("share" + i);
+            scheduler.setPriority(threads[i], tickets[i]);
+            queue.waitForAccess(threads[i]);
+            totalChances += tickets[i] + 1;
+        }
+
+        int[] turns = new int[tickets.length];
+        double worst = 0;
+
+        for (int quantum = 1; quantum <= quanta; quantum++) {
+            KThread thread = queue.nextThread();
+            for (int i = 0; i < tickets.length; i++) {
+                if (threads[i] == thread)
+                    turns[i]++;
+            }
+            queue.waitForAccess(thread);
+
+            for (int i = 0; i < tickets.length; i++) {
+                double share = (double) quantum * (tickets[i] + 1) / totalChances;
+                worst = Math.max(worst, Math.abs(turns[i] - share));
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return worst;
+    }
+
+    /**
+     * Compare how closely stride and lottery scheduling track each thread's
+     * share, and how long each takes.
+     */
+    private static void benchmark(int[] tickets, int quanta) {
+        long start = System.nanoTime();
+        double stride = measureFairness(new StrideScheduler(), tickets, quanta);
+        long strideTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        double lottery = measureFairness(new LotteryScheduler(), tickets, quanta);
+        long lotteryTime = System.nanoTime() - start;
+
+        System.out.println("*** stride: worst error " + (float) stride +
+            " turns in " + quanta + " (" + strideTime / 1000000 + " ms)");
+        System.out.println("*** lottery: worst error " + (float) lottery +
+            " turns in " + quanta + " (" + lotteryTime / 1000000 + " ms)");
+    }
+
+    /**
+     * Test if this module is working. If <tt>StrideScheduler.benchmark</tt>
+     * is set, also compare stride with lottery scheduling.
+     */
+    public static void selfTest() {
+        int[] tickets = new int[] { 1, 2, 3, 4, 5, 6, 7 };
+
+        if (Config.getBoolean("StrideScheduler.benchmark", false))
+            benchmark(tickets, 35000);
+
+        System.out.println("[test:StrideScheduler] fairness test started");
+
+        // no thread is ever more than one turn off its share
+        double stride = measureFairness(new StrideScheduler(), tickets, 3500);
+        Lib.assertTrue(stride < 1);
+
+        System.out.println("[test:StrideScheduler] fairness test passed");
+    }
+}
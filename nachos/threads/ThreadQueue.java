@@ -76,6 +76,20 @@ public abstract class ThreadQueue {
      */
     public abstract KThread nextThread();
 
+    /**
+     * Notify this thread queue that a thread waiting for access has stopped
+     * waiting without receiving it, for example because its time ran out.
+     * The thread is removed from this queue, and no longer donates priority
+     * through it.
+     *
+     * @param thread
+     *            the thread that has stopped waiting.
+     * @return <tt>true</tt> if the thread was waiting on this queue, or
+     *         <tt>false</tt> if it had already been returned from
+     *         <tt>nextThread()</tt>.
+     */
+    public abstract boolean cancel(KThread thread);
+
     /**
      * Notify this thread queue that a thread has received access, without going
      * through <tt>request()</tt> and <tt>nextThread()</tt>. For example, if a
@@ -92,6 +106,35 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received access that it
+     * shares with any other threads given shared access, without going
+     * through <tt>nextThread()</tt>. For example, a thread that acquires a
+     * reader-writer lock for reading shares it with the other readers. If the
+     * thread had exclusive access, it now shares it instead.
+     *
+     * <p>
+     * If the limited access object transfers priority, waiting threads donate
+     * priority to every thread with shared access. The default implementation
+     * does nothing.
+     *
+     * @param thread
+     *            the thread that has received shared access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread has given up its exclusive or
+     * shared access, without handing it on through <tt>nextThread()</tt>. The
+     * default implementation does nothing.
+     *
+     * @param thread
+     *            the thread giving up access.
+     */
+    public void release(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
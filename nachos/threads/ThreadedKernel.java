@@ -31,6 +31,10 @@ public class ThreadedKernel extends Kernel {
         else
             fileSystem = null;
 
+        // set schedulerStats
+        if (Config.getBoolean("SchedulerStats.enabled", false))
+            schedulerStats = new SchedulerStats();
+
         // start threading
         new KThread(null);
 
@@ -48,11 +52,18 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
         if (scheduler instanceof PriorityScheduler)
             PriorityScheduler.selfTest();
-        // Alarm.selfTest();
+        if (scheduler instanceof StrideScheduler)
+            StrideScheduler.selfTest();
+        if (scheduler instanceof EDFScheduler)
+            EDFScheduler.selfTest();
+        Alarm.selfTest();
         Communicator.selfTest();
         KThread.selfTest();
         Semaphore.selfTest();
+        Lock.selfTest();
+        RWLock.selfTest();
         SynchList.selfTest();
+        BlockingQueue.selfTest();
         Condition2.selfTest();
 
         Boat.selfTest();
@@ -82,6 +93,8 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** Globally accessible reference to the scheduler statistics, if any. */
+    public static SchedulerStats schedulerStats = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
@@ -91,4 +104,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
 }
@@ -269,6 +269,9 @@ public class UserProcess {
         int amount = Math.min(length, memory.length - paddr);
         System.arraycopy(data, offset, memory, paddr, amount);
 
+        for (int ppn = paddr / pageSize; ppn <= (paddr + amount - 1) / pageSize; ppn++)
+            Machine.processor().invalidatePage(ppn);
+
         return amount;
     }
 
@@ -295,6 +298,7 @@ public class UserProcess {
 
         try {
             coff = new Coff(executable);
+            coffName = name;
         } catch (EOFException e) {
             executable.close();
             Lib.debug(dbgProcess, "\tcoff load failed");
@@ -342,8 +346,6 @@ public class UserProcess {
         if (!loadSections())
             return false;
 
-        coff.close();
-
         // store arguments in last page
         int entryOffset = (numPages - 1) * pageSize;
         int stringOffset = entryOffset + args.length * 4;
@@ -367,7 +369,9 @@ public class UserProcess {
     /**
      * Allocates memory for this process, and loads the COFF sections into
      * memory. If this returns successfully, the process will definitely be run
-     * (this is the last step in process initialization that can fail).
+     * (this is the last step in process initialization that can fail). The
+     * executable is closed once it is no longer needed, which is here unless a
+     * subclass loads pages from it later.
      *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
@@ -403,6 +407,8 @@ public class UserProcess {
             pageTable[index ++] = new TranslationEntry(++ lastVPN, ppn, true, false, false, false);
         }
 
+        coff.close();
+
         return true;
     }
 
@@ -940,6 +946,8 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file the program was loaded from. */
+    protected String coffName;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
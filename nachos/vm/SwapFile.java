@@ -0,0 +1,138 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * A swap device made of one file, divided into page-sized slots. A bitmap
+ * records which slots are in use. Runs of adjacent slots can be allocated
+ * and written with a single <tt>OpenFile.write()</tt> call, so that the
+ * latency of each file system request is paid once per batch of pages
+ * rather than once per page.
+ */
+public class SwapFile {
+    /**
+     * Create an empty swap file, and arrange for its counters to be printed
+     * when Nachos halts.
+     *
+     * @param name
+     *            the name of the file, which is truncated.
+     */
+    public SwapFile(String name) {
+        this.name = name;
+
+        file = ThreadedKernel.fileSystem.open(name, true);
+        Lib.assertTrue(file != null, "cannot open swap file " + name);
+
+        Machine.addStatsReport(new Runnable() {
+            public void run() {
+                System.out.println("Swap: reads " + numReads + ", writes " + numWrites + ", pages out " + numPagesOut);
+            }
+        });
+    }
+
+    /**
+     * Allocate a run of adjacent free slots, extending the file if no run is
+     * long enough.
+     *
+     * @param count
+     *            the number of slots.
+     * @return the first slot of the run.
+     */
+    public int allocate(int count) {
+        Lib.assertTrue(count > 0);
+
+        int slot = used.nextClearBit(0);
+        while (true) {
+            int end = used.nextSetBit(slot);
+            if (end < 0 || end - slot >= count)
+                break;
+            slot = used.nextClearBit(end);
+        }
+
+        used.set(slot, slot + count);
+        return slot;
+    }
+
+    /**
+     * Return a slot to the free pool.
+     *
+     * @param slot
+     *            the slot to free.
+     */
+    public void free(int slot) {
+        Lib.assertTrue(used.get(slot));
+
+        used.clear(slot);
+    }
+
+    /**
+     * Read a slot into a page of physical memory.
+     *
+     * @param slot
+     *            the slot to read.
+     * @param ppn
+     *            the physical page to read into.
+     */
+    public void readPage(int slot, int ppn) {
+        Lib.assertTrue(used.get(slot));
+
+        numReads++;
+
+        int length = file.read(slot * pageSize, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+        Lib.assertTrue(length == pageSize, "swap read failed");
+
+        Machine.processor().invalidatePage(ppn);
+    }
+
+    /**
+     * Write pages to a run of slots, in one request.
+     *
+     * @param slot
+     *            the first slot of the run.
+     * @param data
+     *            the contents of the pages, one after another.
+     * @param count
+     *            the number of pages.
+     */
+    public void writePages(int slot, byte[] data, int count) {
+        Lib.assertTrue(count > 0 && data.length >= count * pageSize);
+
+        numWrites++;
+        numPagesOut += count;
+
+        int length = file.write(slot * pageSize, data, 0, count * pageSize);
+        Lib.assertTrue(length == count * pageSize, "swap write failed");
+    }
+
+    /**
+     * Return the number of slots in use.
+     */
+    public int getUsedSlots() {
+        return used.cardinality();
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+        file.close();
+        ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    /** Bit <i>s</i> is set if slot <i>s</i> is in use. */
+    private BitSet used = new BitSet();
+
+    /** The number of pages read back from swap. */
+    private int numReads = 0;
+    /** The number of write requests made to swap. */
+    private int numWrites = 0;
+    /** The number of pages written to swap. */
+    private int numPagesOut = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
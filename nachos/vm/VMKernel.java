@@ -5,8 +5,40 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is shared by every process through a global inverted page
+ * table, which records the process and virtual page held in each physical
+ * page. When no page is free, one is taken from its owner with the clock
+ * (second-chance) algorithm, which passes over pages whose used bit is set,
+ * clearing the bit as it goes.
+ *
+ * <p>
+ * Evicted pages that are dirty are written to a swap file; clean pages are
+ * simply dropped, since they can be read again from the executable or from
+ * the swap slot they were last read from. Each time memory runs out, up to
+ * <tt>VMKernel.swapBatch</tt> pages are reclaimed at once, and the dirty ones
+ * among them are written to adjacent slots in a single request.
+ *
+ * <p>
+ * If the processor tags its TLB with address space IDs, each process is given
+ * an ID of its own while there are enough, so that its translations can stay
+ * in the TLB while other processes run. ID 0 is shared by the processes that
+ * did not get one, and their translations are flushed on every switch.
+ *
+ * <p>
+ * Pages loaded from an executable are kept in a page cache, keyed by the name
+ * of the file and the page, and shared by every process running it. Shared
+ * pages are mapped read-only; the first write to a page of a writable section
+ * gives the writer a private copy. Pages nobody maps any more stay cached
+ * until the clock algorithm reclaims them.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +53,29 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
         super.initialize(args);
+
+        vmLock = new Lock();
+
+        frames = new Frame[Machine.processor().getNumPhysPages()];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new Frame();
+
+        swapBatch = Math.max(1, Math.min(Config.getInteger("VMKernel.swapBatch", 4), frames.length));
+        victims = new int[swapBatch];
+        swapBuffer = new byte[swapBatch * Processor.pageSize];
+        swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+
+        if (Machine.processor().hasASIDs())
+            asidOwners = new VMProcess[Machine.processor().getNumASIDs()];
+
+        sharePages = Config.getBoolean("VMKernel.sharePages", true);
+
+        Machine.addStatsReport(new Runnable() {
+            public void run() {
+                System.out.println("VM: page faults " + numPageFaults + ", TLB miss handling ticks " + tlbMissTicks);
+                System.out.println("Sharing: page cache hits " + numSharedPageHits + ", copy-on-write faults " + numCopyOnWrites);
+            }
+        });
     }
 
     /**
@@ -41,11 +96,387 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        if (swap != null)
+            swap.close();
+
         super.terminate();
     }
 
+    /**
+     * Find a physical page to hold virtual page <i>vpn</i> of <i>process</i>,
+     * taking a free page if there is one and otherwise evicting one. The
+     * caller must hold <tt>vmLock</tt>, and must fill the page and validate
+     * its translation before releasing it.
+     *
+     * @param process
+     *            the process the page is for.
+     * @param vpn
+     *            the virtual page it will hold.
+     * @return the physical page number, or -1 if no page could be evicted.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        int ppn;
+        if (memoryAllocator.getRemainPages() > 0)
+            ppn = memoryAllocator.getAvailablePage();
+        else if ((ppn = evictFrame()) < 0)
+            return -1;
+
+        frames[ppn].process = process;
+        frames[ppn].vpn = vpn;
+        return ppn;
+    }
+
+    /**
+     * Return a physical page to the free pool. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param ppn
+     *            the physical page to free.
+     */
+    static void freeFrame(int ppn) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].shared == null);
+
+        frames[ppn].process = null;
+        memoryAllocator.addAvailablePage(ppn);
+    }
+
+    /**
+     * Choose up to <tt>swapBatch</tt> pages with the clock algorithm and take
+     * them from their owners, writing the dirty ones to swap. All but the
+     * first are returned to the free pool.
+     *
+     * @return the first physical page evicted, or -1 if every page is in use.
+     */
+    private static int evictFrame() {
+        syncTLB();
+
+        byte[] memory = Machine.processor().getMemory();
+        int count = 0, numDirty = 0;
+
+        // two sweeps clear every used bit, so a victim is found if one exists
+        for (int i = 0; i < 2 * frames.length && count < swapBatch; i++) {
+            int ppn = clockHand;
+            clockHand = (clockHand + 1) % frames.length;
+
+            Frame frame = frames[ppn];
+            if (frame.shared != null) {
+                if (evictShared(frame.shared))
+                    victims[count++] = ppn;
+                continue;
+            }
+            if (frame.process == null)
+                continue;
+
+            TranslationEntry entry = frame.process.getEntry(frame.vpn);
+            if (!entry.valid)
+                continue;
+
+            if (entry.used) {
+                entry.used = false;
+                continue;
+            }
+
+            Lib.debug(dbgVM, "evicting " + (entry.dirty ? "dirty" : "clean") + " page " + frame.vpn +
+                " of process " + frame.process.pid + " from " + ppn);
+
+            // invalidating the page now also keeps the second sweep from choosing it again
+            frame.process.evict(frame.vpn);
+
+            if (entry.dirty) {
+                // copy out the page, giving up the slot it had
+                System.arraycopy(memory, ppn * pageSize, swapBuffer, numDirty * pageSize, pageSize);
+                frame.process.setSwapSlot(frame.vpn, -1);
+
+                // keep the dirty victims first, in the order they were copied
+                victims[count++] = victims[numDirty];
+                victims[numDirty++] = ppn;
+            } else {
+                victims[count++] = ppn;
+            }
+        }
+
+        if (count == 0)
+            return -1;
+
+        if (numDirty > 0) {
+            int slot = swap.allocate(numDirty);
+            for (int i = 0; i < numDirty; i++) {
+                Frame frame = frames[victims[i]];
+                frame.process.setSwapSlot(frame.vpn, slot + i);
+            }
+
+            swap.writePages(slot, swapBuffer, numDirty);
+        }
+
+        for (int i = 1; i < count; i++)
+            freeFrame(victims[i]);
+
+        frames[victims[0]].process = null;
+        return victims[0];
+    }
+
+    /**
+     * Reclaim a cached page unless one of the processes sharing it has used
+     * it since the clock last passed, in which case their used bits are
+     * cleared. Shared pages are never dirty, so nothing is written back.
+     *
+     * @param page
+     *            the cached page.
+     * @return <tt>true</tt> if the page was reclaimed.
+     */
+    private static boolean evictShared(SharedPage page) {
+        boolean used = false;
+        for (VMProcess process : page.sharers) {
+            TranslationEntry entry = process.getEntry(page.vpn);
+            used |= entry.used;
+            entry.used = false;
+        }
+        if (used)
+            return false;
+
+        Lib.debug(dbgVM, "evicting cached page " + page.key + " from " + page.ppn);
+
+        for (VMProcess process : page.sharers)
+            process.evict(page.vpn);
+
+        pageCache.remove(page.key);
+        frames[page.ppn].shared = null;
+        return true;
+    }
+
+    /**
+     * Map a cached page of an executable into a process, if it is cached.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @param process
+     *            the process.
+     * @param key
+     *            the executable's file name and the page's number.
+     * @return the physical page holding it, or -1 if it is not cached.
+     */
+    static int shareCachedPage(VMProcess process, String key) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        SharedPage page = pageCache.get(key);
+        if (page == null)
+            return -1;
+
+        page.sharers.add(process);
+        numSharedPageHits++;
+        return page.ppn;
+    }
+
+    /**
+     * Enter a page just loaded from an executable into the page cache, so
+     * that other processes running it can share it. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param process
+     *            the process the page was allocated for, which shares it.
+     * @param key
+     *            the executable's file name and the page's number.
+     * @param ppn
+     *            the physical page, as returned by <tt>allocateFrame()</tt>.
+     */
+    static void cachePage(VMProcess process, String key, int ppn) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+        Lib.assertTrue(frames[ppn].process == process);
+
+        SharedPage page = new SharedPage(key, ppn, frames[ppn].vpn);
+        page.sharers.add(process);
+        pageCache.put(key, page);
+
+        frames[ppn].process = null;
+        frames[ppn].shared = page;
+    }
+
+    /**
+     * Stop a process sharing a cached page. The page stays cached. The caller
+     * must hold <tt>vmLock</tt>.
+     *
+     * @param process
+     *            the process.
+     * @param ppn
+     *            the physical page, which must be shared.
+     */
+    static void unsharePage(VMProcess process, int ppn) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        frames[ppn].shared.sharers.remove(process);
+    }
+
+    /**
+     * Test whether a physical page is in the page cache, and so may be mapped
+     * by more than one process.
+     */
+    static boolean isShared(int ppn) {
+        return frames[ppn].shared != null;
+    }
+
+    /**
+     * Give a process an address space ID of its own, if one is free. The
+     * caller must hold <tt>vmLock</tt>.
+     *
+     * @param process
+     *            the process.
+     * @return the new ID, or 0 if there is none to give.
+     */
+    static int allocateASID(VMProcess process) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        if (asidOwners == null)
+            return 0;
+
+        for (int asid = 1; asid < asidOwners.length; asid++) {
+            if (asidOwners[asid] == null) {
+                asidOwners[asid] = process;
+                return asid;
+            }
+        }
+
+        Lib.debug(dbgVM, "out of address space IDs");
+        return 0;
+    }
+
+    /**
+     * Return an address space ID to the free pool, removing its translations
+     * from the TLB so that the next owner does not see them. The caller must
+     * hold <tt>vmLock</tt>.
+     *
+     * @param asid
+     *            the ID to free.
+     */
+    static void freeASID(int asid) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        if (asid == 0)
+            return;
+
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            if (processor.readTLBEntry(i).asid == asid)
+                processor.writeTLBEntry(i, invalidEntry);
+        }
+
+        asidOwners[asid] = null;
+    }
+
+    /**
+     * Copy the used and dirty bits the processor has set in the TLB back to
+     * the page tables the entries came from, and clear the used bits in the
+     * TLB so that the clock algorithm sees later references.
+     */
+    static void syncTLB() {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry tlbEntry = processor.readTLBEntry(i);
+            if (!tlbEntry.valid)
+                continue;
+
+            syncTLBEntry(tlbEntry);
+
+            if (tlbEntry.used) {
+                tlbEntry.used = false;
+                processor.writeTLBEntry(i, tlbEntry);
+            }
+        }
+    }
+
+    /**
+     * Copy the used and dirty bits of a valid TLB entry back to the page table
+     * it came from.
+     *
+     * @param tlbEntry
+     *            a copy of the TLB entry.
+     */
+    static void syncTLBEntry(TranslationEntry tlbEntry) {
+        // untagged translations only stay in the TLB while their process runs
+        VMProcess owner = tlbEntry.asid != 0 ? asidOwners[tlbEntry.asid] : currentVMProcess();
+
+        TranslationEntry entry = owner.getEntry(tlbEntry.vpn);
+        entry.used |= tlbEntry.used;
+        entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * Return the current process, if it is a <tt>VMProcess</tt>.
+     */
+    static VMProcess currentVMProcess() {
+        UserProcess process = currentProcess();
+        return process instanceof VMProcess ? (VMProcess) process : null;
+    }
+
+    /** The owner of a page of physical memory. */
+    private static class Frame {
+        /**
+         * The process whose page this is, or <tt>null</tt> if it is free or
+         * shared.
+         */
+        VMProcess process = null;
+        int vpn;
+        /** The cached page held here, or <tt>null</tt> if it is not shared. */
+        SharedPage shared = null;
+    }
+
+    /** A page of an executable in the page cache. */
+    private static class SharedPage {
+        SharedPage(String key, int ppn, int vpn) {
+            this.key = key;
+            this.ppn = ppn;
+            this.vpn = vpn;
+        }
+
+        String key;
+        int ppn;
+        /** The virtual page it is mapped at, in every process sharing it. */
+        int vpn;
+        /** The processes mapping it. */
+        List<VMProcess> sharers = new ArrayList<VMProcess>();
+    }
+
+    /** Guards the inverted page table and every process's page table. */
+    static Lock vmLock;
+
+    /** The inverted page table, indexed by physical page number. */
+    private static Frame[] frames;
+    /** The next physical page the clock algorithm looks at. */
+    private static int clockHand = 0;
+
+    /** The process given each address space ID, or <tt>null</tt> if the TLB is untagged. */
+    private static VMProcess[] asidOwners = null;
+
+    /** <tt>true</tt> if pages of executables are shared through the page cache. */
+    static boolean sharePages;
+    /** The cached pages of executables, by file name and page number. */
+    private static Map<String, SharedPage> pageCache = new HashMap<String, SharedPage>();
+
+    /** Where evicted dirty pages are kept. */
+    static SwapFile swap;
+    /** The most pages to reclaim each time memory runs out. */
+    private static int swapBatch;
+    /** The pages being evicted. */
+    private static int[] victims;
+    /** The contents of the dirty pages being evicted. */
+    private static byte[] swapBuffer;
+
+    /** The number of pages brought into memory on demand. */
+    static int numPageFaults = 0;
+    /** The number of ticks spent handling TLB misses, including page faults. */
+    static long tlbMissTicks = 0;
+    /** The number of page faults satisfied by a page another process had loaded. */
+    private static int numSharedPageHits = 0;
+    /** The number of shared pages copied because a process wrote to them. */
+    static int numCopyOnWrites = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    static final TranslationEntry invalidEntry = new TranslationEntry();
+
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
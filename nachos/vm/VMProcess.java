@@ -5,8 +5,20 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical memory is given to a process when it is loaded. A page of a
+ * COFF section is read from the executable the first time it is touched, and
+ * a page of stack, arguments or uninitialized data is zero-filled. A page
+ * that was dirty when evicted is read back from its swap slot instead. Pages
+ * of the executable are shared with other processes running it through the
+ * kernel's page cache, and copied on the first write. The
+ * process's page table is only seen by the kernel: the processor translates
+ * through its TLB, which is refilled from the page table on each miss.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,14 +34,29 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
+
+        // translations tagged with this process's own address space ID can
+        // stay in the TLB, since no other process matches them
+        if (asid != 0)
+            return;
+
+        VMKernel.syncTLB();
+
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            if (processor.readTLBEntry(i).asid == 0)
+                processor.writeTLBEntry(i, VMKernel.invalidEntry);
+        }
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB is refilled on demand, so only
+     * the address space ID needs to be restored, if the TLB is tagged.
      */
     public void restoreState() {
-        super.restoreState();
+        if (Machine.processor().hasASIDs())
+            Machine.processor().setASID(asid);
     }
 
     /**
@@ -39,14 +66,389 @@ public class VMProcess extends UserProcess {
      * @return <tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-        return super.loadSections();
+        pageSections = new CoffSection[numPages];
+        swapSlots = new int[numPages];
+        Arrays.fill(swapSlots, -1);
+
+        VMKernel.vmLock.acquire();
+        asid = VMKernel.allocateASID(this);
+        VMKernel.vmLock.release();
+
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+
+            Lib.debug(dbgProcess,
+                    "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+            for (int i = 0; i < section.getLength(); i++) {
+                int vpn = section.getFirstVPN() + i;
+                pageTable[vpn] = new TranslationEntry(vpn, -1, false, section.isReadOnly(), false, false);
+                pageTable[vpn].asid = asid;
+                pageSections[vpn] = section;
+            }
+        }
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (pageTable[vpn] == null) {
+                pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+                pageTable[vpn].asid = asid;
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>, including
+     * the swap slots holding this process's evicted pages and its address
+     * space ID.
      */
     protected void unloadSections() {
-        super.unloadSections();
+        VMKernel.vmLock.acquire();
+
+        VMKernel.freeASID(asid);
+        asid = 0;
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (pageTable[vpn].valid) {
+                pageTable[vpn].valid = false;
+                if (VMKernel.isShared(pageTable[vpn].ppn))
+                    VMKernel.unsharePage(this, pageTable[vpn].ppn);
+                else
+                    VMKernel.freeFrame(pageTable[vpn].ppn);
+            }
+            setSwapSlot(vpn, -1);
+        }
+
+        VMKernel.vmLock.release();
+
+        coff.close();
+    }
+
+    public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return transferVirtualMemory(vaddr, data, offset, length, false);
+    }
+
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return transferVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between this process's virtual memory and an array, one page
+     * at a time, paging in each page first and copying a shared page before
+     * writing it. Stops at the first page that is outside the address space,
+     * that cannot be paged in, or that is read-only when <i>writing</i>.
+     *
+     * @return the number of bytes successfully transferred.
+     */
+    private int transferVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean writing) {
+        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
+
+        Processor processor = Machine.processor();
+        byte[] memory = processor.getMemory();
+
+        int amount = 0;
+        while (amount < length) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            if (vpn >= numPages)
+                break;
+
+            int count = Math.min(length - amount, pageSize - pageOffset);
+
+            VMKernel.vmLock.acquire();
+
+            TranslationEntry entry = pageIn(vpn);
+            if (entry != null && writing && isCopyOnWrite(vpn))
+                entry = copyOnWrite(vpn);
+            if (entry == null || (writing && entry.readOnly)) {
+                VMKernel.vmLock.release();
+                break;
+            }
+
+            int paddr = entry.ppn * pageSize + pageOffset;
+            if (writing) {
+                System.arraycopy(data, offset + amount, memory, paddr, count);
+                processor.invalidatePage(entry.ppn);
+                entry.dirty = true;
+            } else {
+                System.arraycopy(memory, paddr, data, offset + amount, count);
+            }
+            entry.used = true;
+
+            VMKernel.vmLock.release();
+
+            amount += count;
+        }
+
+        return amount;
+    }
+
+    /**
+     * Make a virtual page resident, reading it from swap or the executable,
+     * or zero-filling it. A page of the executable is shared through the page
+     * cache, and is mapped read-only while it is. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param vpn
+     *            the virtual page, which must be in the address space.
+     * @return its translation, or <tt>null</tt> if no physical page could be
+     *         found for it.
+     */
+    private TranslationEntry pageIn(int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        if (entry.valid)
+            return entry;
+
+        VMKernel.numPageFaults++;
+
+        CoffSection section = pageSections[vpn];
+        // uninitialized data is zero-filled, which costs less than sharing it
+        boolean shared = VMKernel.sharePages && section != null && section.isInitialzed() && swapSlots[vpn] < 0;
+
+        int ppn = shared ? VMKernel.shareCachedPage(this, pageKey(vpn)) : -1;
+        if (ppn >= 0) {
+            Lib.debug(dbgVM, "sharing page " + vpn + " of " + coffName + " at " + ppn);
+        } else if ((ppn = VMKernel.allocateFrame(this, vpn)) < 0) {
+            return null;
+        } else if (swapSlots[vpn] >= 0) {
+            // the slot stays allocated, so the page need not be written again unless it is dirtied
+            Lib.debug(dbgVM, "loading page " + vpn + " from swap slot " + swapSlots[vpn]);
+            VMKernel.swap.readPage(swapSlots[vpn], ppn);
+        } else if (section != null) {
+            Lib.debug(dbgVM, "loading page " + vpn + " from " + section.getName());
+            section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+            if (shared)
+                VMKernel.cachePage(this, pageKey(vpn), ppn);
+        } else {
+            Lib.debug(dbgVM, "zero-filling page " + vpn);
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+            Machine.processor().invalidatePage(ppn);
+        }
+
+        entry.ppn = ppn;
+        entry.valid = true;
+        entry.readOnly = section != null && (section.isReadOnly() || shared);
+        // the page is about to be referenced
+        entry.used = true;
+        entry.dirty = false;
+        return entry;
+    }
+
+    /**
+     * Test whether a virtual page is a page of a writable section that is
+     * mapped to a shared page, and so must be copied before it is written.
+     */
+    private boolean isCopyOnWrite(int vpn) {
+        CoffSection section = pageSections[vpn];
+
+        return section != null && !section.isReadOnly() && pageTable[vpn].valid &&
+            VMKernel.isShared(pageTable[vpn].ppn);
+    }
+
+    /**
+     * Replace the shared page mapped at a virtual page with a private, dirty
+     * copy that can be written. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param vpn
+     *            the virtual page, which must be copy-on-write.
+     * @return its new translation, or <tt>null</tt> if no physical page could
+     *         be found for the copy.
+     */
+    private TranslationEntry copyOnWrite(int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        byte[] memory = Machine.processor().getMemory();
+
+        // finding a page may evict the shared one, so copy it out first
+        byte[] contents = new byte[pageSize];
+        System.arraycopy(memory, entry.ppn * pageSize, contents, 0, pageSize);
+
+        VMKernel.unsharePage(this, entry.ppn);
+        evict(vpn);
+
+        int ppn = VMKernel.allocateFrame(this, vpn);
+        if (ppn < 0)
+            return null;
+
+        Lib.debug(dbgVM, "copying page " + vpn + " to " + ppn);
+        VMKernel.numCopyOnWrites++;
+
+        System.arraycopy(contents, 0, memory, ppn * pageSize, pageSize);
+        Machine.processor().invalidatePage(ppn);
+
+        entry.ppn = ppn;
+        entry.valid = true;
+        entry.readOnly = false;
+        entry.used = true;
+        // the copy differs from the executable once written, so it must go to swap
+        entry.dirty = true;
+        return entry;
+    }
+
+    /**
+     * Return the page cache key of a page of this process's executable.
+     */
+    private String pageKey(int vpn) {
+        return coffName + ":" + vpn;
+    }
+
+    /**
+     * Return the translation for a virtual page.
+     */
+    TranslationEntry getEntry(int vpn) {
+        return pageTable[vpn];
+    }
+
+    /**
+     * Set the swap slot holding a virtual page, freeing the slot it had
+     * before. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param vpn
+     *            the virtual page.
+     * @param slot
+     *            its new slot, or -1 if it has none.
+     */
+    void setSwapSlot(int vpn, int slot) {
+        if (swapSlots[vpn] >= 0)
+            VMKernel.swap.free(swapSlots[vpn]);
+
+        swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Take a resident page away from this process, after its contents have
+     * been dealt with. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param vpn
+     *            the virtual page to invalidate.
+     */
+    void evict(int vpn) {
+        pageTable[vpn].valid = false;
+
+        // untagged translations only stay in the TLB while their process runs
+        if (asid == 0 && this != VMKernel.currentVMProcess())
+            return;
+
+        Processor processor = Machine.processor();
+        for (int i = 0; i < processor.getTLBSize(); i++) {
+            TranslationEntry tlbEntry = processor.readTLBEntry(i);
+            if (tlbEntry.valid && tlbEntry.vpn == vpn && tlbEntry.asid == asid)
+                processor.writeTLBEntry(i, VMKernel.invalidEntry);
+        }
+    }
+
+    /**
+     * Handle a TLB miss by paging in the missing page if need be and loading
+     * its translation into the TLB. The faulting instruction is then retried.
+     *
+     * <p>
+     * A page that is already resident is mapped without taking
+     * <tt>vmLock</tt>: pages are only evicted by a running thread, so with
+     * interrupts disabled a valid translation cannot be taken away. Otherwise a
+     * process that had waited for the lock would find its TLB flushed by the
+     * context switch, and could fault on every instruction while the lock is
+     * handed from process to process.
+     *
+     * @param vaddr
+     *            the virtual address that missed.
+     */
+    private void handleTLBMiss(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+        if (vpn >= numPages) {
+            Lib.debug(dbgVM, "TLB miss outside the address space: " + vaddr);
+            super.handleException(Processor.exceptionTLBMiss);
+            return;
+        }
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean resident = pageTable[vpn].valid;
+        if (resident)
+            loadTLBEntry(pageTable[vpn]);
+
+        Machine.interrupt().restore(intStatus);
+        if (resident)
+            return;
+
+        VMKernel.vmLock.acquire();
+
+        TranslationEntry entry = pageIn(vpn);
+        if (entry != null)
+            loadTLBEntry(entry);
+
+        VMKernel.vmLock.release();
+
+        if (entry == null) {
+            Lib.debug(dbgVM, "out of physical memory");
+            super.handleException(Processor.exceptionTLBMiss);
+        }
+    }
+
+    /**
+     * Load a translation into the TLB. A free entry is used if there is one;
+     * otherwise an entry not used since the used bits were last cleared is
+     * replaced (NRU). If every entry has been used, the used bits are copied
+     * to the page table and cleared, and the entries are replaced in turn.
+     *
+     * @param entry
+     *            a valid translation of this process.
+     */
+    private void loadTLBEntry(TranslationEntry entry) {
+        Processor processor = Machine.processor();
+
+        int slot = -1, unused = -1;
+        for (int i = 0; i < processor.getTLBSize() && slot < 0; i++) {
+            TranslationEntry tlbEntry = processor.readTLBEntry(i);
+            if (!tlbEntry.valid)
+                slot = i;
+            else if (!tlbEntry.used && unused < 0)
+                unused = i;
+        }
+
+        if (slot < 0) {
+            if (unused < 0) {
+                VMKernel.syncTLB();
+
+                unused = nextTLBSlot;
+                nextTLBSlot = (nextTLBSlot + 1) % processor.getTLBSize();
+            }
+            slot = unused;
+
+            VMKernel.syncTLBEntry(processor.readTLBEntry(slot));
+        }
+
+        processor.writeTLBEntry(slot, entry);
+    }
+
+    /**
+     * Handle a read-only exception. A write to a shared page of a writable
+     * section copies the page, and the faulting instruction is retried; any
+     * other write to a read-only page kills the process.
+     *
+     * @param vaddr
+     *            the virtual address written.
+     */
+    private void handleReadOnly(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+
+        TranslationEntry entry = null;
+        if (vpn < numPages && pageSections[vpn] != null && !pageSections[vpn].isReadOnly()) {
+            VMKernel.vmLock.acquire();
+
+            // the page may have been evicted, or copied, while waiting
+            entry = pageIn(vpn);
+            if (entry != null && isCopyOnWrite(vpn))
+                entry = copyOnWrite(vpn);
+            if (entry != null)
+                loadTLBEntry(entry);
+
+            VMKernel.vmLock.release();
+        }
+
+        if (entry == null)
+            super.handleException(Processor.exceptionReadOnly);
     }
 
     /**
@@ -62,12 +464,33 @@ public class VMProcess extends UserProcess {
         Processor processor = Machine.processor();
 
         switch (cause) {
+        case Processor.exceptionTLBMiss:
+            long start = Machine.timer().getTime();
+            handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+            VMKernel.tlbMissTicks += Machine.timer().getTime() - start;
+            break;
+
+        case Processor.exceptionReadOnly:
+            handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+            break;
+
         default:
             super.handleException(cause);
             break;
         }
     }
 
+    /** The COFF section each virtual page is loaded from, if any. */
+    private CoffSection[] pageSections;
+    /** The swap slot holding each virtual page, or -1 if it has none. */
+    private int[] swapSlots;
+
+    /** This process's address space ID, or 0 if it has none of its own. */
+    private int asid = 0;
+
+    /** The TLB entry to replace next when every entry has been used. */
+    private int nextTLBSlot = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';